@@ -39,5 +39,11 @@ public class FilterParametersActivity extends SettingsActivity {
         initEditFloat(R.id.bias_x, PREF_BIAS_X, 0);
         initEditFloat(R.id.bias_y, PREF_BIAS_Y, 0);
         initEditFloat(R.id.bias_z, PREF_BIAS_Z, 0);
+
+        // Read by VariometerService, same types and defaults
+        initCompoundButton(R.id.sensor_decimation, VariometerService.PREF_DECIMATION, false);
+        initEditInt(R.id.covariance_interval, VariometerService.PREF_COVARIANCE_INTERVAL, 1);
+        initEditFloat(R.id.cf_time_constant, VariometerService.PREF_CF_TIME_CONSTANT, 2);
+        initCompoundButton(R.id.latency_monitor, VariometerService.PREF_LATENCY_MONITOR, false);
     }
 }
@@ -7,6 +7,8 @@ package info.altimeter.variometer;
 
 import android.os.Bundle;
 
+import info.altimeter.variometer.common.NmeaOutput;
+
 public class IndicatorSettingsActivity extends SettingsActivity {
 
     static public String PREF_SCALE_LIMIT = "scale_limit";
@@ -23,5 +25,11 @@ public class IndicatorSettingsActivity extends SettingsActivity {
         initEditInt(R.id.scale_limit, PREF_SCALE_LIMIT, 1);
         initSpinner(R.id.vsi_unit, R.array.pref_unit_list_titles, PREF_UNIT_INDEX, 0);
         initCompoundButton(R.id.keep_screen, PREF_KEEP_SCREEN, true);
+
+        // Read by VariometerService, same types and defaults
+        initCompoundButton(R.id.igc_log, VariometerService.PREF_IGC_LOG, false);
+        initEditFloat(R.id.igc_interval, VariometerService.PREF_IGC_INTERVAL, 1);
+        initCompoundButton(R.id.nmea_output, VariometerService.PREF_NMEA_OUTPUT, false);
+        initEditInt(R.id.nmea_port, VariometerService.PREF_NMEA_PORT, NmeaOutput.DEFAULT_PORT);
     }
 }
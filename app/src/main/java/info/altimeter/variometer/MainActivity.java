@@ -9,7 +9,6 @@ import static android.Manifest.permission.POST_NOTIFICATIONS;
 import static info.altimeter.variometer.PressureActivity.pressureFormats;
 import static info.altimeter.variometer.PressureActivity.pressureUnitsR;
 
-import android.annotation.SuppressLint;
 import android.app.Dialog;
 import android.content.ComponentName;
 import android.content.Context;
@@ -21,9 +20,8 @@ import android.hardware.Sensor;
 import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -45,21 +43,24 @@ import androidx.preference.PreferenceManager;
 import java.util.ArrayList;
 import java.util.Locale;
 
+import info.altimeter.variometer.common.AltitudeIndicator;
+import info.altimeter.variometer.common.NeedleAnimator;
+import info.altimeter.variometer.common.VariometerState;
 import info.altimeter.variometer.common.VerticalSpeedIndicator;
 
 public class MainActivity extends AppCompatActivity {
     static final String TAG = "MainActivity";
-    static final int UPDATE_INDICATORS_NOW = 42;
 
     MainPreferenceListener prefListener = new MainPreferenceListener();
-    UpdateHandler updateHandler;
+    IndicatorFrameCallback frameCallback = new IndicatorFrameCallback();
+    Choreographer choreographer;
     VariometerService varioService;
     VariometerServiceConnection serviceConnection;
     VariometerService.VariometerServiceBinder serviceBinder;
     MainVarioCallback varioCallback = new MainVarioCallback();
     boolean boundToService = false;
     VerticalSpeedIndicator vsi;
-    TextView viewAltitude;
+    AltitudeIndicator viewAltitude;
     TextView viewAltitudeUnit;
     TextView viewPressureUnit;
     Button buttonStart;
@@ -80,6 +81,13 @@ public class MainActivity extends AppCompatActivity {
     float vspeed = 0;
     int t = 0;
 
+    /** Latest estimate published by the service, null when not bound */
+    VariometerState sharedState = null;
+    VariometerState.Snapshot snapshot = new VariometerState.Snapshot();
+
+    /** Needle position between filter updates */
+    NeedleAnimator needleAnimator = new NeedleAnimator();
+
     int type = TYPE_IVSI;
     int vsiLimit = 5;
     int vsiUnitIndex = 0;
@@ -104,6 +112,7 @@ public class MainActivity extends AppCompatActivity {
     static final short REQUEST_CODE_PRESSURE = 9999;
     static final int TYPE_VSI = 0;
     static final int TYPE_IVSI = 1;
+    static final int TYPE_IVSI_CF = 2;
 
     float referencePressure = SensorManager.PRESSURE_STANDARD_ATMOSPHERE;
     static final float[] vsiUnits = { 1, 0.51444f, 0.508f };
@@ -164,9 +173,6 @@ public class MainActivity extends AppCompatActivity {
                     buttonStop.setEnabled(false);
                 }
             }
-            vspeed = Float.NaN;
-            altitude = Float.NaN;
-            updateHandler.sendEmptyMessage(UPDATE_INDICATORS_NOW);
         }
     }
 
@@ -182,15 +188,9 @@ public class MainActivity extends AppCompatActivity {
     private class MainVarioCallback implements VariometerService.VarioCallback {
 
         @Override
-        public void OnUpdate(float alt, float vspeed) {
-            if (updateHandler == null) {
-                return;
-            }
-            vsi.setVSpeed(vspeed);
-            if (updateHandler.hasMessages(UPDATE_INDICATORS_NOW)) {
-                return;
-            }
-            updateHandler.sendEmptyMessage(UPDATE_INDICATORS_NOW);
+        public void OnUpdate(float alt, float vspeed, float acc) {
+            // Called on the sensor thread, the indicators pick it up on the next frame
+            needleAnimator.add(System.nanoTime(), vspeed, acc);
         }
     }
     private class VariometerServiceConnection implements ServiceConnection {
@@ -202,6 +202,8 @@ public class MainActivity extends AppCompatActivity {
             binder = (VariometerService.VariometerServiceBinder) service;
             varioService = binder.getService();
             varioService.setVarioCallback(varioCallback);
+            sharedState = varioService.getState();
+            frameCallback.valid = false;
             boundToService = true;
             boolean hasStarted = varioService.hasStarted();
             if (buttonStart != null) {
@@ -216,6 +218,8 @@ public class MainActivity extends AppCompatActivity {
         public void onServiceDisconnected(ComponentName name) {
             varioService.setVarioCallback(null);
             varioService = null;
+            sharedState = null;
+            frameCallback.valid = false;
             boundToService = false;
             if (buttonStart != null) {
                 buttonStart.setEnabled(false);
@@ -226,32 +230,77 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    class UpdateHandler extends Handler {
-        @SuppressLint("SetTextI18n")
+    /*
+     *  Indicators are refreshed at most once per display frame, and only when they change.
+     *  The needle is animated at display rate from the latest filter estimates.
+     */
+    class IndicatorFrameCallback implements Choreographer.FrameCallback {
+        boolean running = false;
+        boolean valid = false;
+        int shownSequence;
+        float shownNeedle = Float.NaN;
+
+        void start() {
+            if (!running) {
+                running = true;
+                valid = false;
+                shownNeedle = Float.NaN;
+                choreographer.postFrameCallback(this);
+            }
+        }
+
+        void stop() {
+            running = false;
+            choreographer.removeFrameCallback(this);
+        }
+
         @Override
-        public void handleMessage(@NonNull Message msg) {
-            super.handleMessage(msg);
-
-            if (msg.what == UPDATE_INDICATORS_NOW) {
-                if (boundToService) {
-                    vspeed = varioService.getVerticalSpeed();
-                    altitude = varioService.getAltitude();
-                } else {
-                    vspeed = Float.NaN;
-                    altitude = Float.NaN;
+        public void doFrame(long frameTimeNanos) {
+            if (!running) {
+                return;
+            }
+
+            VariometerState state = sharedState;
+            if (state == null) {
+                if (!valid) {
+                    valid = true;
+                    showState(Float.NaN, Float.NaN);
                 }
+            } else if (!valid || state.getSequence() != shownSequence) {
+                state.read(snapshot);
+                shownSequence = snapshot.sequence;
+                valid = true;
+                showState((float) snapshot.altitude, (float) snapshot.verticalSpeed);
+            }
 
-                vsi.setVSpeed(vspeed);
+            float needle = Float.NaN;
+            if (Float.isNaN(vspeed)) {
+                needleAnimator.resetDisplay();
+            } else {
+                needle = needleAnimator.getValue(frameTimeNanos);
+            }
+            if (Float.floatToIntBits(needle) != Float.floatToIntBits(shownNeedle)) {
+                shownNeedle = needle;
+                vsi.setVSpeed(needle);
                 vsi.invalidate();
             }
 
-            if (viewAltitude != null) {
-                if (Float.isNaN(altitude)) {
-                    viewAltitude.setText("");
-                } else {
-                    viewAltitude.setText(Integer.toString(Math.round(altitude * 3.28084f)));
-                }
-            }
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    void showState(float alt, float v) {
+        altitude = alt;
+        vspeed = v;
+
+        if (Float.isNaN(vspeed)) {
+            vsi.setVSpeed(vspeed);
+            vsi.invalidate();
+        }
+
+        // The indicator only redraws when a drum moves
+        if (viewAltitude != null) {
+            viewAltitude.setReading(altitude * 3.28084f);
         }
     }
 /*
@@ -410,7 +459,7 @@ public class MainActivity extends AppCompatActivity {
 
         pref.registerOnSharedPreferenceChangeListener(prefListener);
 
-        if(type != TYPE_IVSI)
+        if(type != TYPE_IVSI && type != TYPE_IVSI_CF)
             type = TYPE_VSI;
 
         if (keep_on) {
@@ -446,7 +495,7 @@ public class MainActivity extends AppCompatActivity {
             buttonStop.setOnClickListener(new StopClick());
         }
 
-        updateHandler = new UpdateHandler();
+        choreographer = Choreographer.getInstance();
 
         serviceConnection = new VariometerServiceConnection();
 
@@ -466,7 +515,9 @@ public class MainActivity extends AppCompatActivity {
             unbindService(serviceConnection);
             boundToService = false;
         }
-        updateHandler.sendEmptyMessage(UPDATE_INDICATORS_NOW);
+        sharedState = null;
+        frameCallback.stop();
+        showState(Float.NaN, Float.NaN);
 
         super.onStop();
     }
@@ -481,7 +532,7 @@ public class MainActivity extends AppCompatActivity {
             bindService(intent, serviceConnection, BIND_AUTO_CREATE);
         }
 
-        updateHandler.sendEmptyMessage(UPDATE_INDICATORS_NOW);
+        frameCallback.start();
     }
 
     @Override
@@ -497,6 +548,8 @@ public class MainActivity extends AppCompatActivity {
 
         if (type == TYPE_IVSI) {
             vsi.setTypeName("IVSI");
+        } else if (type == TYPE_IVSI_CF) {
+            vsi.setTypeName("IVSI CF");
         } else {
             vsi.setTypeName("");
             type = TYPE_VSI;
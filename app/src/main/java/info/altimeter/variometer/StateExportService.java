@@ -0,0 +1,163 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+import info.altimeter.variometer.common.ExportRing;
+
+/**
+ * Gives other apps read-only access to the state export ring.
+ *
+ * A client binds with ACTION_STATE_EXPORT and sends MSG_GET_CHANNEL with replyTo set;
+ * the reply carries the SharedMemory in its data bundle under KEY_MEMORY.
+ * After this one transaction, the client maps the memory and polls it with ExportRing.Reader.
+ * The ring is created and written only after the first request, and no longer written
+ * when all clients have unbound.
+ *
+ * Binding requires PERMISSION_READ_STATE, a runtime permission that the user grants to the client.
+ */
+public class StateExportService extends Service {
+    private static final String TAG = "StateExportService";
+
+    public static final String ACTION_STATE_EXPORT = "info.altimeter.variometer.STATE_EXPORT";
+    public static final String PERMISSION_READ_STATE = "info.altimeter.variometer.permission.READ_STATE";
+    public static final int MSG_GET_CHANNEL = 1;
+    public static final int MSG_CHANNEL = 2;
+    public static final String KEY_MEMORY = "memory";
+
+    /** 2 s of updates at 100 Hz */
+    static final int CAPACITY = 256;
+
+    private static SharedMemory memory = null;
+    private static ExportRing.Writer writer = null;
+
+    /** Set on the main thread when a client asks for the ring, cleared when all clients unbind */
+    private static boolean clients = false;
+    private static ClientListener clientListener = null;
+
+    interface ClientListener {
+        /**
+         * Called on the main thread
+         * @param active True when a client has asked for the ring, false when all have unbound
+         */
+        void onExportClients(boolean active);
+    }
+
+    /**
+     * @param l Listener to notify when the export is needed, null to remove
+     */
+    static void setClientListener(ClientListener l) {
+        clientListener = l;
+    }
+
+    /**
+     * Called on the main thread
+     * @return True if a bound client has asked for the ring
+     */
+    static boolean hasClients() {
+        return clients;
+    }
+
+    private static void setClients(boolean active) {
+        if (clients == active) {
+            return;
+        }
+
+        clients = active;
+        if (clientListener != null) {
+            clientListener.onExportClients(active);
+        }
+    }
+
+    /**
+     * The ring is created once per process, the writer is shared by all variometers
+     * @return Writer to subscribe to a Variometer, null if shared memory is not available
+     */
+    static synchronized ExportRing.Writer getWriter() {
+        if (writer == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            try {
+                memory = SharedMemory.create("variometer-state", ExportRing.size(CAPACITY));
+                ByteBuffer buffer = memory.mapReadWrite();
+                writer = new ExportRing.Writer(buffer);
+
+                // Mappings made from now on, including those of other processes, are read-only
+                memory.setProtect(OsConstants.PROT_READ);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot create shared memory", e);
+                memory = null;
+            }
+        }
+
+        return writer;
+    }
+
+    static synchronized SharedMemory getMemory() {
+        getWriter();
+        return memory;
+    }
+
+    static class RequestHandler extends Handler {
+
+        RequestHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != MSG_GET_CHANNEL || msg.replyTo == null) {
+                super.handleMessage(msg);
+                return;
+            }
+
+            Message reply = Message.obtain(null, MSG_CHANNEL);
+            SharedMemory m = getMemory();
+            if (m != null) {
+                Bundle data = new Bundle();
+                data.putParcelable(KEY_MEMORY, m);
+                reply.setData(data);
+                setClients(true);
+            }
+
+            try {
+                msg.replyTo.send(reply);
+            } catch (RemoteException e) {
+                // The client has gone
+            }
+        }
+    }
+
+    private final Messenger messenger = new Messenger(new RequestHandler());
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger.getBinder();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        setClients(false);
+        return false;
+    }
+}
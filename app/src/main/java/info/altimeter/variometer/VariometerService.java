@@ -14,6 +14,7 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -29,7 +30,9 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.TypedValue;
+import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
@@ -38,7 +41,18 @@ import androidx.core.app.ServiceCompat;
 import androidx.preference.PreferenceManager;
 import androidx.vectordrawable.graphics.drawable.VectorDrawableCompat;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Locale;
+
+import info.altimeter.variometer.common.EstimatorFactory;
+import info.altimeter.variometer.common.ExportRing;
+import info.altimeter.variometer.common.IgcWriter;
+import info.altimeter.variometer.common.LatencyMonitor;
+import info.altimeter.variometer.common.NmeaOutput;
 import info.altimeter.variometer.common.Variometer;
+import info.altimeter.variometer.common.VariometerState;
 
 public class VariometerService extends Service {
 
@@ -51,7 +65,9 @@ public class VariometerService extends Service {
     boolean foregroundState = false;
     int notifyID = 1;
     SharedPreferences pref;
-    VariometerServiceListener myListener = new VariometerServiceListener();
+    AudioListener audioListener = new AudioListener();
+    CallbackListener callbackListener = new CallbackListener();
+    ExportClientListener exportClientListener = new ExportClientListener();
     VarioPreferenceListener preferenceListener = new VarioPreferenceListener();
     boolean started = false;
     boolean soundEnabled = false;
@@ -59,6 +75,38 @@ public class VariometerService extends Service {
 
     static final int TYPE_VSI = 0;
     static final int TYPE_IVSI = 1;
+    /** Inertial, complementary filter instead of Kalman filter */
+    static final int TYPE_IVSI_CF = 2;
+
+    static final String PREF_LATENCY_MONITOR = "latency_monitor";
+    static final String PREF_CF_TIME_CONSTANT = "cf_time_constant";
+    static final String PREF_DECIMATION = "sensor_decimation";
+    /** Filter steps between covariance updates */
+    static final String PREF_COVARIANCE_INTERVAL = "covariance_interval";
+    static final String PREF_NMEA_OUTPUT = "nmea_output";
+    static final String PREF_NMEA_PORT = "nmea_port";
+    static final String PREF_IGC_LOG = "igc_log";
+    /** Seconds between IGC records */
+    static final String PREF_IGC_INTERVAL = "igc_interval";
+    /** Flight log in progress, to be continued if the service is restarted */
+    static final String PREF_IGC_FILE = "igc_file";
+
+    /** The audio thread fills one buffer every 50 ms */
+    static final double AUDIO_UPDATE_RATE = 20;
+    /** Display refresh rate */
+    static final double CALLBACK_UPDATE_RATE = 60;
+    /** Glide computers expect vario sentences a few times per second */
+    static final double NMEA_UPDATE_RATE = 10;
+
+    LatencyMonitor latency = new LatencyMonitor();
+    NmeaOutput nmeaOutput = null;
+    Variometer.Subscription nmeaSubscription = null;
+    Variometer.Subscription exportSubscription = null;
+    IgcWriter igcWriter = null;
+
+    /** Latest estimate, outlives the variometer so that readers can keep it */
+    final VariometerState state = new VariometerState();
+    final EstimatorFactory estimators = new EstimatorFactory();
 
     double[] input = new double[2];
     double[] kB = { 1, 1, 1 };
@@ -92,7 +140,11 @@ public class VariometerService extends Service {
     }
 
     public static interface VarioCallback {
-        void OnUpdate(float alt, float vspeed);
+        /**
+         * Called on the sensor thread
+         * @param acc Vertical acceleration, NaN if not estimated (VSI mode)
+         */
+        void OnUpdate(float alt, float vspeed, float acc);
     }
 
     public class AudioThread extends Thread {
@@ -284,7 +336,9 @@ public class VariometerService extends Service {
             audioData = new short[size];
 
             while (!stopRequested) {
+                long t0 = latency.start();
                 fillBuffer(audioData, 0, size);
+                latency.record(LatencyMonitor.AUDIO_FILL, t0);
                 track.write(audioData, 0, size);
             }
 
@@ -294,19 +348,40 @@ public class VariometerService extends Service {
         }
     }
 
-    private class VariometerServiceListener implements Variometer.VariometerListener {
+    private class AudioListener implements Variometer.VariometerListener {
 
         @Override
         public void onStateUpdate(float h, float v) {
-            if (beepingThread != null) {
-                beepingThread.setVerticalSpeed(v);
+            AudioThread thread = beepingThread;
+            if (thread != null) {
+                thread.setVerticalSpeed(v);
+            }
+        }
+    }
+
+    private class ExportClientListener implements StateExportService.ClientListener {
+
+        @Override
+        public void onExportClients(boolean active) {
+            if (active) {
+                startExport();
+            } else {
+                stopExport();
             }
+        }
+    }
+
+    private class CallbackListener implements Variometer.StateListener {
 
-            if (callback != null) {
-                callback.OnUpdate(h, v);
+        @Override
+        public void onStateUpdate(Variometer.StateUpdate update) {
+            VarioCallback cb = callback;
+            if (cb != null) {
+                float acc = update.stateDim > 2 ? (float) update.x[2] : Float.NaN;
+                cb.OnUpdate((float) update.x[0], (float) update.x[1], acc);
             }
             // modify notification
-            // notification.? = Float.toString(h);
+            // notification.? = Float.toString(update.x[0]);
         }
     }
 
@@ -360,6 +435,11 @@ public class VariometerService extends Service {
                 soundEnabled = sharedPreferences.getBoolean(key, soundEnabled);
                 return;
             }
+
+            if (key.equals(PREF_LATENCY_MONITOR)) {
+                setLatencyMonitoring(sharedPreferences.getBoolean(key, false));
+                return;
+            }
         }
     }
 
@@ -396,6 +476,14 @@ public class VariometerService extends Service {
         kC[0] = pref.getFloat(FilterParametersActivity.PREF_BIAS_X, 0);
         kC[1] = pref.getFloat(FilterParametersActivity.PREF_BIAS_Y, 0);
         kC[2] = pref.getFloat(FilterParametersActivity.PREF_BIAS_Z, 0);
+        latency.setEnabled(pref.getBoolean(PREF_LATENCY_MONITOR, false));
+        StateExportService.setClientListener(exportClientListener);
+    }
+
+    @Override
+    public void onDestroy() {
+        StateExportService.setClientListener(null);
+        super.onDestroy();
     }
 
     @Override
@@ -440,17 +528,47 @@ public class VariometerService extends Service {
 
         type = pref.getInt(PREF_TYPE, type);
 
+        // The fastest equivalent filter engine for this device, probed once per app version
+        estimators.restore(pref, getVersionName(), smoother_lag);
+
         if (type == TYPE_VSI) {
             variometer = new Variometer(false, smoother_lag);
             variometer.setProcessNoise(sigma_vsi);
-        }
-
-        if (type == TYPE_IVSI) {
+        } else if (type == TYPE_IVSI_CF) {
+            variometer = new Variometer(true, 0);
+            variometer.setComplementaryFilter(pref.getFloat(PREF_CF_TIME_CONSTANT, 2));
+        } else {
             variometer = new Variometer(true, smoother_lag);
             variometer.setProcessNoise(sigma_ivsi);
         }
 
-        variometer.setListener(myListener);
+        // Kalman filter options, the complementary filter has no covariance
+        if (type != TYPE_IVSI_CF) {
+            variometer.setEngine(estimators.getSelected());
+            variometer.setCovarianceInterval(pref.getInt(PREF_COVARIANCE_INTERVAL, 1));
+        }
+
+        variometer.setDecimation(pref.getBoolean(PREF_DECIMATION, false));
+
+        // Averaged for the audio thread, latest for the display
+        variometer.subscribe(audioListener, AUDIO_UPDATE_RATE, true);
+        variometer.subscribe(callbackListener, CALLBACK_UPDATE_RATE, false);
+
+        // Every update goes to the shared memory ring while other apps read it
+        if (StateExportService.hasClients()) {
+            startExport();
+        }
+
+        if (pref.getBoolean(PREF_IGC_LOG, false)) {
+            // A null intent means the system has restarted the service
+            startIgcLog(intent == null);
+        }
+
+        if (pref.getBoolean(PREF_NMEA_OUTPUT, false)) {
+            startNmeaOutput(pref.getInt(PREF_NMEA_PORT, NmeaOutput.DEFAULT_PORT));
+        }
+        variometer.setLatencyMonitor(latency);
+        variometer.setPublishedState(state);
 
 /*
         if (pressureSensor == null) {
@@ -489,7 +607,125 @@ public class VariometerService extends Service {
         return b;
     }
 
+    File newIgcFile() {
+        File dir = getExternalFilesDir("igc");
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+
+        String date = String.format(Locale.US, "%tF", new Date());
+        File file;
+        int n = 1;
+        do {
+            file = new File(dir, String.format(Locale.US, "%s-XXX-VARIO-%02d.IGC", date, n));
+            n += 1;
+        } while (file.exists());
+
+        return file;
+    }
+
+    String getVersionName() {
+        try {
+            return getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "";
+        }
+    }
+
+    void startIgcLog(boolean restarted) {
+        if (igcWriter == null) {
+            String path = restarted ? pref.getString(PREF_IGC_FILE, null) : null;
+            File file = path != null ? new File(path) : newIgcFile();
+            long clockOffset = System.currentTimeMillis() * 1000000L - SystemClock.elapsedRealtimeNanos();
+
+            try {
+                igcWriter = new IgcWriter(file, clockOffset);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot write " + file, e);
+                return;
+            }
+            pref.edit().putString(PREF_IGC_FILE, file.getPath()).apply();
+        }
+
+        float interval = pref.getFloat(PREF_IGC_INTERVAL, 1);
+        variometer.subscribe(igcWriter, 1 / interval, false);
+    }
+
+    void stopIgcLog() {
+        if (igcWriter == null) {
+            return;
+        }
+
+        // The variometer is stopped, no more records are coming
+        try {
+            igcWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + igcWriter.getFile(), e);
+        }
+        igcWriter = null;
+        pref.edit().remove(PREF_IGC_FILE).apply();
+    }
+
+    void startNmeaOutput(int port) {
+        // The service may be started again while running
+        if (nmeaOutput != null) {
+            stopNmeaOutput();
+        }
+
+        try {
+            nmeaOutput = new NmeaOutput(port);
+            nmeaSubscription = variometer.subscribe(nmeaOutput, NMEA_UPDATE_RATE, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot listen on port " + port, e);
+            nmeaOutput = null;
+        }
+    }
+
+    void startExport() {
+        // The service may be started again while running
+        if (exportSubscription != null) {
+            stopExport();
+        }
+
+        if (variometer == null) {
+            return;
+        }
+
+        ExportRing.Writer writer = StateExportService.getWriter();
+        if (writer == null) {
+            return;
+        }
+
+        exportSubscription = variometer.subscribe(writer, 0, false);
+    }
+
+    void stopExport() {
+        if (exportSubscription != null && variometer != null) {
+            variometer.unsubscribe(exportSubscription);
+        }
+        exportSubscription = null;
+    }
+
+    void stopNmeaOutput() {
+        if (nmeaSubscription != null && variometer != null) {
+            variometer.unsubscribe(nmeaSubscription);
+        }
+        nmeaSubscription = null;
+
+        if (nmeaOutput != null) {
+            try {
+                nmeaOutput.close();
+            } catch (IOException e) {
+                // Closed anyway
+            }
+            nmeaOutput = null;
+        }
+    }
+
     public void stopEverything()  {
+        stopNmeaOutput();
+        stopExport();
+
         if (beepingThread != null) {
             beepingThread.safelyStop();
             beepingThread = null;
@@ -499,6 +735,12 @@ public class VariometerService extends Service {
             variometer.stop(this);
             variometer = null;
         }
+        stopIgcLog();
+        state.clear(SystemClock.elapsedRealtimeNanos());
+
+        if (latency.isEnabled()) {
+            dumpLatency();
+        }
 
         if (foregroundState) {
             stopForeground(STOP_FOREGROUND_REMOVE);
@@ -509,24 +751,40 @@ public class VariometerService extends Service {
         stopSelf();
     }
 
-    public void setVarioCallback(VarioCallback cb) {
-        callback = cb;
+    public void setLatencyMonitoring(boolean enabled) {
+        latency.setEnabled(enabled);
     }
 
-    public float getVerticalSpeed() {
-        if (variometer == null) {
-            return Float.NaN;
+    /**
+     * Write latency histograms to the app's external files directory
+     * @return The file written, or null on error
+     */
+    public File dumpLatency() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+
+        File file = new File(dir, "latency-" + Build.MODEL.replace(' ', '_') + "-" + System.currentTimeMillis() + ".txt");
+        try {
+            latency.dump(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+            return null;
         }
 
-        return variometer.getVerticalSpeed();
+        return file;
     }
 
-    public float getAltitude() {
-        if (variometer == null) {
-            return Float.NaN;
-        }
+    public void setVarioCallback(VarioCallback cb) {
+        callback = cb;
+    }
 
-        return variometer.getAltitude();
+    /**
+     * @return Latest estimate, can be read from any thread without locking
+     */
+    public VariometerState getState() {
+        return state;
     }
 
     public boolean hasStarted() {
@@ -0,0 +1,212 @@
+package info.altimeter.variometer.common;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cost of one IVSI filter step (predict, pressure and acceleration updates)
+ * with the double and float engines, with the covariance updated at a lower rate,
+ * with acceleration as control input and with the complementary filter, on the device itself,
+ * and the scaling of the chunked interval smoother with the number of cores.
+ * Results go to logcat, tag FilterBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FilterBenchmark {
+    static final String TAG = "FilterBenchmark";
+    static final int STEPS = 20000;
+    static final double DT = 0.02;
+
+    static StateEstimator newFilter(boolean single, int lag) {
+        StateEstimator filter;
+
+        if (lag > 0) {
+            filter = single ? new FloatFixedLagSmoother(3, 2, 0, lag) : new FixedLagSmoother(3, 2, 0, lag);
+        } else {
+            filter = single ? new FloatKalmanFilter(3, 2, 0) : new KalmanFilter(3, 2, 0);
+        }
+
+        filter.setPeriod(DT);
+        filter.setProcessNoise(DT, 0.0039 * 0.0039);
+        filter.setMeasurementError(new double[] { 0.5, 0.25 });
+        filter.initCovariance(new double[] { 100, 0.01, 3 });
+        filter.setState(0, 500);
+
+        return filter;
+    }
+
+    static double stepTime(boolean single, int lag) {
+        return stepTime(single, lag, 1);
+    }
+
+    /**
+     * @param interval Steps between covariance updates
+     * @return Time per step, µs
+     */
+    static double stepTime(boolean single, int lag, int interval) {
+        StateEstimator filter = newFilter(single, lag);
+        Random random = new Random(1);
+        long t0 = 0;
+        int i;
+
+        filter.setCovarianceInterval(interval);
+
+        // The first half warms up the JIT and lets the gains converge
+        for (i = -STEPS; i < STEPS; i += 1) {
+            if (i == 0) {
+                t0 = System.nanoTime();
+            }
+            filter.filterPredict(null);
+            if ((i & 1) != 0) {
+                filter.filterUpdateSequential(0, 500 + random.nextGaussian() * 0.5);
+            }
+            filter.filterUpdateSequential(1, random.nextGaussian() * 0.25);
+        }
+
+        return (System.nanoTime() - t0) * 1e-3 / STEPS;
+    }
+
+    /**
+     * Acceleration as control input of a two-state filter
+     * @return Time per step, µs
+     */
+    static double controlStepTime(StateEstimator filter) {
+        Random random = new Random(1);
+        double[] u = new double[1];
+        long t0 = 0;
+        int i;
+
+        filter.setPeriod(DT);
+        filter.setProcessNoise(DT, 0.25 * 0.25);
+        filter.setMeasurementError(new double[] { 0.5 });
+        filter.initCovariance(new double[] { 100, 0.01 });
+        filter.setState(0, 500);
+
+        for (i = -STEPS; i < STEPS; i += 1) {
+            if (i == 0) {
+                t0 = System.nanoTime();
+            }
+            u[0] = random.nextGaussian() * 0.25;
+            filter.filterPredict(u);
+            if ((i & 1) != 0) {
+                filter.filterUpdateSequential(0, 500 + random.nextGaussian() * 0.5);
+            }
+        }
+
+        return (System.nanoTime() - t0) * 1e-3 / STEPS;
+    }
+
+    @Test
+    public void controlStepTime() {
+        double three = stepTime(false, 0);
+        double two = controlStepTime(new KalmanFilter(2, 1, 1));
+        double twoFloat = controlStepTime(new FloatKalmanFilter(2, 1, 1));
+        double complementary = controlStepTime(new ComplementaryFilter(2));
+
+        Log.i(TAG, String.format(Locale.US, "3 states %.2f µs/step, 2 states with control input %.2f µs/step (float %.2f)",
+                three, two, twoFloat));
+        Log.i(TAG, String.format(Locale.US, "complementary filter %.3f µs/step", complementary));
+        assertTrue(two < three);
+        assertTrue(complementary < two);
+    }
+
+    @Test
+    public void covarianceIntervalStepTime() {
+        int[] intervals = { 1, 10, 50 };
+        double[] d = new double[intervals.length];
+        int i;
+
+        for (i = 0; i < intervals.length; i += 1) {
+            d[i] = stepTime(false, 0, intervals[i]);
+            double f = stepTime(true, 0, intervals[i]);
+
+            Log.i(TAG, String.format(Locale.US, "covariance interval %d: double %.2f µs/step, float %.2f µs/step",
+                    intervals[i], d[i], f));
+        }
+        assertTrue(d[intervals.length - 1] < d[0]);
+    }
+
+    @Test
+    public void stepTime() {
+        int[] lags = { 0, 10, 20, 50, 100, 200 };
+        double d0 = 0;
+
+        for (int lag : lags) {
+            double d = stepTime(false, lag);
+            double f = stepTime(true, lag);
+
+            if (lag == 0) {
+                d0 = d;
+            }
+
+            // The backward pass is linear in the lag, the cost per state in the window should stay flat
+            Log.i(TAG, String.format(Locale.US, "lag %d: double %.2f µs/step, float %.2f µs/step, %.1f ns per lag step",
+                    lag, d, f, lag > 0 ? (d - d0) * 1e3 / lag : 0));
+            assertTrue(d > 0 && f > 0);
+        }
+    }
+
+    @Test
+    public void intervalSmootherScaling() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        // One hour of flight
+        int n = (int) Math.round(3600 / DT);
+        double[] z = new double[n * 2];
+        double[] xs = new double[n * 3];
+        Random random = new Random(1);
+        int i;
+
+        for (i = 0; i < n; i += 1) {
+            z[i * 2] = (i & 1) != 0 ? 500 + random.nextGaussian() * 0.5 : Double.NaN;
+            z[i * 2 + 1] = random.nextGaussian() * 0.25;
+        }
+
+        IntervalSmoother smoother = new IntervalSmoother(new IntervalSmoother.Model() {
+            @Override
+            public KalmanFilter newFilter() {
+                KalmanFilter filter = new KalmanFilter(3, 2, 0);
+                filter.setPeriod(DT);
+                filter.setProcessNoise(DT, 0.01);
+                filter.setMeasurementError(new double[] { 0.5, 0.25 });
+                filter.initCovariance(new double[] { 1000, 10, 3 });
+                return filter;
+            }
+        });
+
+        // Warm up the JIT
+        smoother.smooth(z, xs);
+
+        long t0 = System.nanoTime();
+        smoother.smooth(z, xs);
+        double serial = (System.nanoTime() - t0) * 1e-6;
+        Log.i(TAG, String.format(Locale.US, "interval smoother, %d steps: serial %.0f ms", n, serial));
+
+        smoother.setChunks(10000, 1000);
+        double single = 0, all = 0;
+        for (int threads = 1; threads <= cores; threads += 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            t0 = System.nanoTime();
+            smoother.smooth(z, xs, pool);
+            double t = (System.nanoTime() - t0) * 1e-6;
+            pool.shutdown();
+
+            if (threads == 1) {
+                single = t;
+            }
+            all = t;
+            Log.i(TAG, String.format(Locale.US, "interval smoother, %d threads: %.0f ms, speedup %.2f",
+                    threads, t, single / t));
+        }
+
+        assertTrue(cores == 1 || all < single);
+    }
+}
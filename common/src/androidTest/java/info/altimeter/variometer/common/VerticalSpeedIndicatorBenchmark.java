@@ -0,0 +1,105 @@
+package info.altimeter.variometer.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Build;
+import android.util.Log;
+import android.view.View;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Per-frame cost of VerticalSpeedIndicator.onDraw: rasterized in software, and recorded
+ * for hardware rendering with the bitmaps drawn through the canvas or with display lists.
+ * Results go to logcat, tag VsiBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VerticalSpeedIndicatorBenchmark {
+    static final String TAG = "VsiBenchmark";
+    static final int SIDE = 640;
+    static final int FRAMES = 2000;
+
+    VerticalSpeedIndicator createIndicator(boolean hardware) {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        VerticalSpeedIndicator vsi = new VerticalSpeedIndicator(context);
+        int spec = View.MeasureSpec.makeMeasureSpec(SIDE, View.MeasureSpec.EXACTLY);
+
+        vsi.measure(spec, spec);
+        vsi.layout(0, 0, SIDE, SIDE);
+        vsi.setHardwareRendering(hardware);
+
+        return vsi;
+    }
+
+    double softwareFrameTime() {
+        VerticalSpeedIndicator vsi = createIndicator(false);
+        Bitmap target = Bitmap.createBitmap(SIDE, SIDE, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(target);
+        long t0 = 0;
+        int i;
+
+        for (i = -FRAMES; i < FRAMES; i += 1) {
+            if (i == 0) {
+                t0 = System.nanoTime();
+            }
+            vsi.setVSpeed(i * 0.001f);
+            vsi.draw(canvas);
+        }
+
+        return (System.nanoTime() - t0) * 1e-3 / FRAMES;
+    }
+
+    /**
+     * UI thread cost of a hardware-accelerated frame: recording onDraw into a display list
+     * @param nodes Draw the cached dial and arrow nodes, or the bitmaps through the canvas
+     */
+    double recordingFrameTime(boolean nodes) {
+        VerticalSpeedIndicator vsi = createIndicator(nodes);
+        RenderNode target = new RenderNode("benchmark");
+        long t0 = 0;
+        int i;
+
+        target.setPosition(0, 0, SIDE, SIDE);
+        for (i = -FRAMES; i < FRAMES; i += 1) {
+            if (i == 0) {
+                t0 = System.nanoTime();
+            }
+            vsi.setVSpeed(i * 0.001f);
+            RecordingCanvas canvas = target.beginRecording();
+            vsi.draw(canvas);
+            target.endRecording();
+        }
+
+        return (System.nanoTime() - t0) * 1e-3 / FRAMES;
+    }
+
+    @Test
+    public void frameTime() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q);
+
+        double software = softwareFrameTime();
+        double direct = recordingFrameTime(false);
+        double nodes = recordingFrameTime(true);
+
+        // Rasterization in software is a reference only, the hardware paths
+        // leave it to the render thread and are compared with each other
+        Log.i(TAG, String.format(Locale.US, "software bitmaps %.1f µs/frame, recorded: bitmaps %.1f µs/frame, display lists %.1f µs/frame",
+                software, direct, nodes));
+
+        // Recording two node references costs no more than recording two bitmap draws,
+        // the margin is for timer and scheduling noise
+        assertTrue(nodes < 1.25 * direct);
+    }
+}
@@ -1,8 +1,8 @@
 package info.altimeter.variometer.common;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.util.AttributeSet;
@@ -10,83 +10,218 @@ import android.view.View;
 
 import androidx.annotation.Nullable;
 
+/**
+ * Rolling-drum counter, like a mechanical altimeter.
+ * The lowest drum turns continuously with the reading, each higher drum turns
+ * while the drums below it pass from 9 to 0.
+ * Digits are copied from a shared glyph atlas; the view is only invalidated
+ * when a drum moves by at least one pixel.
+ */
 public class AltitudeIndicator extends View {
+    static final int MAX_DRUMS = 9;
 
-    Paint drawPaint = null;
-    Bitmap singleDigitTape = null;
-    Bitmap doubleDigitTape = null;
+    Paint drawPaint = new Paint();
+    GlyphAtlas atlas = null;
 
     Rect src = new Rect();
     Rect dst = new Rect();
 
-    int singleDigitHeight = 0;
+    int drums = 5;
+    int textColor = Color.WHITE;
 
-    int viewWidth = 0;
+    /** Pixel offset of each drum in the atlas, -1 if the drum is not shown */
+    int[] offsets = new int[MAX_DRUMS];
+    boolean negative = false;
+
+    float reading = Float.NaN;
+
+    public AltitudeIndicator(Context context) {
+        this(context, null);
+    }
+
+    public AltitudeIndicator(Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public AltitudeIndicator(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        this(context, attrs, defStyleAttr, 0);
+    }
 
-    float reading = 12345;
     public AltitudeIndicator(Context context, @Nullable AttributeSet attrs, int defStyleAttr, int defStyleRes) {
         super(context, attrs, defStyleAttr, defStyleRes);
+
+        drawPaint.setFilterBitmap(false);
+        clearOffsets();
+    }
+
+    void clearOffsets() {
+        int k;
+
+        for (k = 0; k < MAX_DRUMS; k += 1) {
+            offsets[k] = -1;
+        }
+        negative = false;
+    }
+
+    public void setDrumCount(int n) {
+        drums = Math.max(1, Math.min(n, MAX_DRUMS));
+        updateOffsets();
+        requestLayout();
+    }
+
+    public void setTextColor(int color) {
+        textColor = color;
+        if (getHeight() > 0) {
+            atlas = GlyphAtlas.get(cellHeight(getHeight()), textColor);
+        }
+        invalidate();
+    }
+
+    /**
+     * @param value Altitude in display units, NaN to show nothing
+     */
+    public void setReading(float value) {
+        reading = value;
+        updateOffsets();
+    }
+
+    public float getReading() {
+        return reading;
+    }
+
+    /*
+     *  Compute drum offsets, invalidate if any drum has moved
+     */
+    void updateOffsets() {
+        boolean changed = false;
+        boolean minus = false;
+        int k, off;
+
+        if (atlas == null) {
+            return;
+        }
+
+        int h = atlas.cellHeight;
+        double r = reading;
+
+        if (Double.isNaN(r)) {
+            for (k = 0; k < MAX_DRUMS; k += 1) {
+                if (offsets[k] != -1) {
+                    offsets[k] = -1;
+                    changed = true;
+                }
+            }
+        } else {
+            if (r < 0) {
+                minus = true;
+                r = -r;
+            }
+
+            double unit = 1;
+            for (k = 0; k < MAX_DRUMS; k += 1) {
+                if (k >= drums || (k > 0 && r < unit - 1)) {
+                    // Leading zero
+                    off = -1;
+                } else {
+                    double position;
+                    if (k == 0) {
+                        position = r % 10;
+                    } else {
+                        // Turn along with the drums below while they pass from 9 to 0
+                        double below = r % unit;
+                        position = Math.floor(r / unit) % 10 + Math.max(0, below - (unit - 1));
+                    }
+                    off = (int) Math.round(position * h);
+                }
+
+                if (offsets[k] != off) {
+                    offsets[k] = off;
+                    changed = true;
+                }
+                unit *= 10;
+            }
+        }
+
+        if (minus != negative) {
+            negative = minus;
+            changed = true;
+        }
+
+        if (changed) {
+            invalidate();
+        }
+    }
+
+    static int cellHeight(int viewHeight) {
+        return Math.max(1, Math.round(viewHeight * 0.6f));
     }
 
     @Override
-    protected void onSizeChanged(int width, int height, int w0, int h0) {
-        if (null == drawPaint) {
-            drawPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int height = getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec);
+        int width;
+
+        if (MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.EXACTLY) {
+            width = MeasureSpec.getSize(widthMeasureSpec);
+        } else {
+            GlyphAtlas a = GlyphAtlas.get(cellHeight(height), textColor);
+            width = a.cellWidth * (drums + 1) + getPaddingLeft() + getPaddingRight();
+            width = resolveSize(width, widthMeasureSpec);
         }
 
-        viewWidth = width;
-
-        String digits = "0123456789";
-        Rect bounds = new Rect();
-        drawPaint.getTextBounds(digits, 0, 1, bounds);
-        singleDigitHeight = bounds.height();
-        singleDigitTape = Bitmap.createBitmap(width, singleDigitHeight * 10, Bitmap.Config.ARGB_8888);
-        doubleDigitTape = Bitmap.createBitmap(width, singleDigitHeight * 10, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(singleDigitTape);
-        for (int i = 0; i < 10; i += 1) {
-            canvas.drawText(digits.substring(i, i + 1), 0, (9 - i) * singleDigitHeight, drawPaint);
+        setMeasuredDimension(width, height);
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int w0, int h0) {
+        if (height == 0) {
+            atlas = null;
+            return;
         }
+
+        atlas = GlyphAtlas.get(cellHeight(height), textColor);
+        clearOffsets();
+        updateOffsets();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        Paint paint = drawPaint;
-        if (null == paint) {
+        GlyphAtlas a = atlas;
+        int k, x, top;
+        int highest = -1;
+
+        if (a == null) {
             return;
         }
-        paint.setFilterBitmap(true);
-
-        int d = Math.round(reading * singleDigitHeight);
-        int q = singleDigitHeight * 10;
 
-        int off = d % q;
+        int w = a.cellWidth;
+        int h = a.cellHeight;
 
+        x = getWidth() - getPaddingRight() - w;
+        top = (getHeight() - h) / 2;
         src.left = 0;
-        src.right = singleDigitTape.getWidth();
-        src.top = singleDigitHeight * 9 - off;
-        src.bottom = singleDigitHeight * 10 - off;
-
-        dst.top = 0;
-        dst.bottom = singleDigitHeight;
-        dst.left = viewWidth / 2;
-        dst.right = dst.left + singleDigitTape.getWidth();
-
-        if (off > singleDigitHeight * 9) {
-            src.top = 0;
-            dst.top = off - singleDigitHeight * 9;
-            dst.bottom = singleDigitHeight;
-            canvas.drawBitmap(singleDigitTape, src, dst, paint);
-
-            src.top = singleDigitHeight * 10 - off;
-            src.bottom = singleDigitHeight * 10;
-            dst.top = 0;
-            dst.bottom = off - singleDigitHeight * 9;
-            canvas.drawBitmap(singleDigitTape, src, dst, paint);
-        } else {
-            canvas.drawBitmap(singleDigitTape, src, dst, paint);
+        src.right = w;
+        dst.top = top;
+        dst.bottom = top + h;
+
+        for (k = 0; k < drums; k += 1) {
+            if (offsets[k] < 0) {
+                continue;
+            }
+            src.top = offsets[k];
+            src.bottom = offsets[k] + h;
+            dst.left = x - k * w;
+            dst.right = dst.left + w;
+            canvas.drawBitmap(a.bitmap, src, dst, drawPaint);
+            highest = k;
         }
 
-        canvas.drawBitmap(singleDigitTape, src, dst, paint);
-
+        if (negative && highest >= 0) {
+            src.top = GlyphAtlas.CELL_MINUS * h;
+            src.bottom = src.top + h;
+            dst.left = x - (highest + 1) * w;
+            dst.right = dst.left + w;
+            canvas.drawBitmap(a.bitmap, src, dst, drawPaint);
+        }
     }
 }
@@ -0,0 +1,169 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Sensor source backed by SensorManager,
+ * events are delivered on a dedicated handler thread.
+ */
+public class AndroidSensorSource implements SensorSource {
+    SensorManager manager;
+    Receiver receiver;
+    PressureListener listenerP;
+    AccelerationListener listenerA;
+    RotationListener listenerR;
+
+    private HandlerThread mSensorThread;
+    private Handler mSensorHandler;
+
+    Sensor pressureSensor;
+    Sensor rotationSensor;
+    Sensor accelerometers;
+
+    boolean realPartMayBeMissing = true;
+    LatencyMonitor latency = null;
+
+    public AndroidSensorSource(Context context) {
+        manager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+
+        if (Build.VERSION.SDK_INT >= 18) {
+            realPartMayBeMissing = false;
+        }
+
+        pressureSensor = manager.getDefaultSensor(Sensor.TYPE_PRESSURE);
+        accelerometers = manager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        rotationSensor = manager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+        if (rotationSensor == null) {
+            rotationSensor = manager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        }
+
+        listenerR = new RotationListener();
+        listenerA = new AccelerationListener();
+        listenerP = new PressureListener();
+
+        mSensorThread = new HandlerThread("Variometer Sensors", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+    }
+
+    public void setLatencyMonitor(LatencyMonitor monitor) {
+        latency = monitor;
+    }
+
+    /*
+     *  Sensor event timestamps use the same time base as elapsedRealtimeNanos()
+     */
+    void recordDelay(SensorEvent event) {
+        if (latency != null) {
+            latency.recordValue(LatencyMonitor.SENSOR_DELAY, SystemClock.elapsedRealtimeNanos() - event.timestamp);
+        }
+    }
+
+    @Override
+    public double getMinPeriod(int sensor) {
+        Sensor s = null;
+
+        switch (sensor) {
+        case PRESSURE:
+            s = pressureSensor;
+            break;
+        case ACCELERATION:
+            s = accelerometers;
+            break;
+        case ROTATION:
+            s = rotationSensor;
+            break;
+        }
+
+        if (s == null) {
+            return Double.NaN;
+        }
+
+        return s.getMinDelay() * 1e-6;
+    }
+
+    @Override
+    public void start(Receiver r, double pressurePeriod, double accelerationPeriod, double rotationPeriod) {
+        receiver = r;
+
+        mSensorThread.start();
+        mSensorHandler = new Handler(mSensorThread.getLooper());
+
+        if (rotationSensor != null && rotationPeriod > 0) {
+            manager.registerListener(listenerR, rotationSensor, (int) Math.round(rotationPeriod * 1e6), mSensorHandler);
+        }
+
+        if (accelerometers != null && accelerationPeriod > 0) {
+            manager.registerListener(listenerA, accelerometers, (int) Math.round(accelerationPeriod * 1e6), mSensorHandler);
+        }
+
+        if (pressureSensor != null && pressurePeriod > 0) {
+            manager.registerListener(listenerP, pressureSensor, (int) Math.round(pressurePeriod * 1e6), mSensorHandler);
+        }
+    }
+
+    @Override
+    public void stop() {
+        manager.unregisterListener(listenerP);
+        manager.unregisterListener(listenerA);
+        manager.unregisterListener(listenerR);
+        mSensorThread.quitSafely();
+    }
+
+    private class PressureListener implements SensorEventListener {
+
+        public void onAccuracyChanged(Sensor arg0, int arg1) {
+        }
+
+        public void onSensorChanged(SensorEvent arg0) {
+            recordDelay(arg0);
+            receiver.onPressure(arg0.timestamp, arg0.values[0]);
+        }
+    }
+
+    private class AccelerationListener implements SensorEventListener {
+
+        public void onAccuracyChanged(Sensor arg0, int arg1) {
+        }
+
+        public void onSensorChanged(SensorEvent arg0) {
+            recordDelay(arg0);
+            boolean linear = arg0.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION;
+            receiver.onAcceleration(arg0.timestamp, arg0.values[0], arg0.values[1], arg0.values[2], linear);
+        }
+    }
+
+    private class RotationListener implements SensorEventListener {
+
+        public void onAccuracyChanged(Sensor arg0, int arg1) {
+        }
+
+        public void onSensorChanged(SensorEvent event) {
+            float x, y, z, w;
+
+            x = event.values[0];
+            y = event.values[1];
+            z = event.values[2];
+            if (realPartMayBeMissing || event.values.length < 4) {
+                // Compute the real part of a unit quaternion from the 3 imaginary parts
+                w = (float) Math.sqrt(1 - (x * x + y * y + z * z));
+            } else {
+                w = event.values[3];
+            }
+
+            receiver.onRotation(event.timestamp, x, y, z, w);
+        }
+    }
+}
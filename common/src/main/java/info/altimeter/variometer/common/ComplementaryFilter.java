@@ -0,0 +1,149 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+/**
+ * Second-order complementary filter: vertical acceleration is integrated at the accelerometer rate,
+ * and barometric altitude corrects the drift with a critically damped loop, ω = 1 / timeConstant.
+ *
+ * <pre>
+ * prediction:  h += v·dt + a·dt²/2,  v += a·dt
+ * correction:  e = z - h,  h += 2ω·T·e,  v += ω²·T·e    (T: time since the previous correction)
+ * </pre>
+ *
+ * A few multiply-adds per sample and no matrices. Acceleration is passed as the control input,
+ * or as input 1 of a sequential update, applied by the next prediction.
+ * There is no covariance, variances are NaN, and no innovation statistics.
+ */
+public class ComplementaryFilter implements StateEstimator {
+    double h = 0;
+    double v = 0;
+    double a = 0;
+    double dt = 0.02;
+    double omega;
+
+    /** Observation of altitude by input 0, dp/dh in the pressure domain */
+    double observation = 1;
+
+    /** Time since the previous altitude correction */
+    double elapsed = 0;
+
+    /**
+     * @param timeConstant Crossover time constant (s): longer trusts the accelerometer more
+     */
+    public ComplementaryFilter(double timeConstant) {
+        setTimeConstant(timeConstant);
+    }
+
+    public void setTimeConstant(double timeConstant) {
+        omega = 1.0 / timeConstant;
+    }
+
+    @Override
+    public int getStateDim() {
+        return 2;
+    }
+
+    @Override
+    public double getState(int i) {
+        return i == 0 ? h : v;
+    }
+
+    @Override
+    public void setState(int i, double value) {
+        if (i == 0) {
+            h = value;
+        } else {
+            v = value;
+        }
+    }
+
+    @Override
+    public double getVariance(int i) {
+        return Double.NaN;
+    }
+
+    @Override
+    public int getState(double[] dst) {
+        dst[0] = h;
+        dst[1] = v;
+
+        return 2;
+    }
+
+    @Override
+    public int setPeriod(double dt) {
+        this.dt = dt;
+
+        return 0;
+    }
+
+    @Override
+    public int setProcessNoise(double dt, double var) {
+        return 0;
+    }
+
+    @Override
+    public int initCovariance(double[] std) {
+        return 2;
+    }
+
+    @Override
+    public int setMeasurementError(double[] std) {
+        return std.length;
+    }
+
+    @Override
+    public void setObservation(int i, int j, double value) {
+        if (i == 0 && j == 0) {
+            observation = value;
+        }
+    }
+
+    @Override
+    public void setStatistics(InnovationStatistics stats) {
+    }
+
+    @Override
+    public void setCovarianceInterval(int interval) {
+    }
+
+    @Override
+    public int filterPredict(double[] control) {
+        if (control != null) {
+            a = control[0];
+        }
+
+        h += (v + a * dt * 0.5) * dt;
+        v += a * dt;
+        elapsed += dt;
+
+        return 2;
+    }
+
+    @Override
+    public int filterUpdate(double[] input) {
+        return filterUpdateSequential(0, input[0]);
+    }
+
+    @Override
+    public int filterUpdateSequential(int i, double z_i) {
+        if (i != 0) {
+            a = z_i;
+            return 2;
+        }
+
+        double e = (z_i - observation * h) / observation;
+        double t = elapsed > 0 ? elapsed : dt;
+        double k = Math.min(1, 2 * omega * t);
+
+        h += k * e;
+        v += omega * omega * t * e;
+        elapsed = 0;
+
+        return 1;
+    }
+}
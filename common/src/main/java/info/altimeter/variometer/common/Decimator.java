@@ -0,0 +1,137 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.util.Arrays;
+
+/**
+ * Low-pass FIR decimator: takes samples at the sensor rate and produces
+ * one filtered sample per factor input samples, at the filter rate.
+ *
+ * Only the output samples are computed, one dot product per output (the polyphase
+ * equivalent of filtering and discarding). The history is kept twice in one array,
+ * so that the latest samples are always contiguous. Nothing is allocated after construction.
+ */
+public class Decimator {
+    final int factor;
+    final int taps;
+    final double[] coefficients;
+
+    /** [ history, history ], the next sample goes to position and position + taps */
+    final double[] history;
+    int position = 0;
+    int phase = 0;
+    boolean primed = false;
+    double output = Double.NaN;
+
+    /**
+     * Windowed sinc filter with the cutoff at half the output Nyquist frequency,
+     * so that the transition band ends below it
+     * @param factor Input samples per output sample
+     * @param taps Filter length
+     */
+    public Decimator(int factor, int taps) {
+        this.factor = factor;
+        this.taps = taps;
+        coefficients = lowPass(taps, 0.25 / factor);
+        history = new double[taps * 2];
+    }
+
+    /**
+     * Filter of 6 · factor + 1 taps: the group delay is three output periods
+     */
+    public Decimator(int factor) {
+        this(factor, 6 * factor + 1);
+    }
+
+    /*
+     *  Blackman-windowed sinc, unity gain at zero frequency
+     *  @param cutoff Cutoff frequency, cycles per sample
+     */
+    static double[] lowPass(int taps, double cutoff) {
+        double[] h = new double[taps];
+        double center = (taps - 1) * 0.5;
+        double sum = 0;
+        int i;
+
+        for (i = 0; i < taps; i += 1) {
+            double t = i - center;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double window = taps > 1
+                    ? 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (taps - 1)) + 0.08 * Math.cos(4 * Math.PI * i / (taps - 1))
+                    : 1;
+            h[i] = sinc * window;
+            sum += h[i];
+        }
+
+        for (i = 0; i < taps; i += 1) {
+            h[i] /= sum;
+        }
+
+        return h;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    /**
+     * @return Group delay, input samples
+     */
+    public double getDelay() {
+        return (taps - 1) * 0.5;
+    }
+
+    /**
+     * Forget the history; the next sample fills it, avoiding a startup transient
+     */
+    public void reset() {
+        primed = false;
+        phase = 0;
+        output = Double.NaN;
+    }
+
+    /**
+     * @return true if an output sample is ready
+     */
+    public boolean add(double x) {
+        double sum = 0;
+        int i;
+
+        if (!primed) {
+            Arrays.fill(history, x);
+            primed = true;
+        }
+
+        history[position] = x;
+        history[position + taps] = x;
+        position += 1;
+        if (position == taps) {
+            position = 0;
+        }
+
+        phase += 1;
+        if (phase < factor) {
+            return false;
+        }
+        phase = 0;
+
+        // From the oldest to the latest sample
+        for (i = 0; i < taps; i += 1) {
+            sum += coefficients[i] * history[position + i];
+        }
+        output = sum;
+
+        return true;
+    }
+
+    /**
+     * @return The latest output sample
+     */
+    public double getOutput() {
+        return output;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Process-wide cache of rendered dial bitmaps, so that recreating the activity
+ * (rotation, preference changes) does not render the same dial again.
+ * Bitmaps are evicted in LRU order when the total size exceeds the limit;
+ * an evicted bitmap is not recycled, since a view may still be drawing it.
+ */
+class DialCache {
+    /** A 1080 px dial plate takes 4.5 MB, keep a few of them within 1/16 of the heap */
+    static final int MAX_BYTES = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 32 << 20);
+
+    static final LruCache<String, Bitmap> cache = new LruCache<String, Bitmap>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    static String plateKey(int side, int scaleLimit, String unitName, String typeName,
+                           String climb, String descent) {
+        return "plate " + side + " " + scaleLimit + " " + unitName + "\n" + typeName
+                + "\n" + climb + "\n" + descent;
+    }
+
+    static String arrowKey(int side) {
+        return "arrow " + side;
+    }
+
+    static Bitmap get(String key) {
+        return cache.get(key);
+    }
+
+    static void put(String key, Bitmap bitmap) {
+        cache.put(key, bitmap);
+    }
+}
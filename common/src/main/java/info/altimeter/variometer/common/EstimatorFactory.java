@@ -0,0 +1,266 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Filter engines for Variometer, with selection of the fastest one on the device.
+ *
+ * probe() runs the same synthetic IVSI workload with every engine, and selects the fastest one
+ * whose estimates match those of the first (reference) engine. The result is stored in
+ * shared preferences for the device model and app version, so the probe only runs once.
+ */
+public class EstimatorFactory {
+    static final String PREF_PREFIX = "estimator_engine/";
+    static final int PROBE_STEPS = 5000;
+    static final int PROBE_RUNS = 3;
+    static final double PROBE_DT = 0.02;
+
+    /** Maximum difference of vertical speed from the reference engine, m/s */
+    static final double TOLERANCE = 0.01;
+
+    public interface Engine {
+        String getName();
+
+        /**
+         * @param lag Smoother lag, 0 for a filter without smoother
+         * @param smoothingInput Input that runs the smoother, see FixedLagSmoother.setSmoothingInput()
+         */
+        StateEstimator create(int state, int input, int controls, int lag, int smoothingInput);
+    }
+
+    public static final Engine DOUBLE = new Engine() {
+        @Override
+        public String getName() {
+            return "double";
+        }
+
+        @Override
+        public StateEstimator create(int state, int input, int controls, int lag, int smoothingInput) {
+            if (lag > 0) {
+                FixedLagSmoother fls = new FixedLagSmoother(state, input, controls, lag);
+                fls.setSmoothingInput(smoothingInput);
+                return fls;
+            }
+
+            return new KalmanFilter(state, input, controls);
+        }
+    };
+
+    public static final Engine FLOAT = new Engine() {
+        @Override
+        public String getName() {
+            return "float";
+        }
+
+        @Override
+        public StateEstimator create(int state, int input, int controls, int lag, int smoothingInput) {
+            if (lag > 0) {
+                FloatFixedLagSmoother fls = new FloatFixedLagSmoother(state, input, controls, lag);
+                fls.setSmoothingInput(smoothingInput);
+                return fls;
+            }
+
+            return new FloatKalmanFilter(state, input, controls);
+        }
+    };
+
+    final List<Engine> engines = new ArrayList<>();
+    volatile Engine selected;
+    volatile boolean probing = false;
+
+    /** Time per step of each engine in the last probe, µs, NaN if rejected */
+    double[] probeTimes = new double[0];
+
+    public EstimatorFactory() {
+        add(DOUBLE);
+        add(FLOAT);
+        selected = DOUBLE;
+    }
+
+    /**
+     * Add a candidate; the first engine is the accuracy reference
+     */
+    public void add(Engine engine) {
+        engines.add(engine);
+    }
+
+    public List<Engine> getEngines() {
+        return engines;
+    }
+
+    /**
+     * @return Engine with the name, null if there is none
+     */
+    public Engine getEngine(String name) {
+        for (Engine e : engines) {
+            if (e.getName().equals(name)) {
+                return e;
+            }
+        }
+
+        return null;
+    }
+
+    public void select(Engine engine) {
+        selected = engine;
+    }
+
+    public Engine getSelected() {
+        return selected;
+    }
+
+    public StateEstimator create(int state, int input, int controls, int lag, int smoothingInput) {
+        return selected.create(state, input, controls, lag, smoothingInput);
+    }
+
+    private static double acceleration(double t) {
+        double s = t % 20;
+
+        if ((s >= 2 && s < 4) || (s >= 16 && s < 18)) {
+            return +1.5;
+        }
+        if ((s >= 6 && s < 8) || (s >= 12 && s < 14)) {
+            return -1.5;
+        }
+
+        return 0;
+    }
+
+    /*
+     *  Inertial filter fed with a climb and sink profile and seeded noise,
+     *  the vertical speed after every step goes to the trace
+     *  @return Time of the run, ns
+     */
+    static long runWorkload(StateEstimator filter, int steps, double[] trace) {
+        Random random = new Random(1);
+        double a = 0, v = 0, h = 500;
+        long t0;
+        int i;
+
+        filter.setPeriod(PROBE_DT);
+        filter.setProcessNoise(PROBE_DT, 0.0039 * 0.0039);
+        filter.setMeasurementError(new double[] { 0.5, 0.25 });
+        filter.initCovariance(new double[] { 100, 0.01, 3 });
+        filter.setState(0, h);
+
+        t0 = System.nanoTime();
+        for (i = 0; i < steps; i += 1) {
+            a = acceleration(i * PROBE_DT);
+            v += a * PROBE_DT;
+            h += v * PROBE_DT;
+
+            filter.filterPredict(null);
+            if ((i & 1) != 0) {
+                filter.filterUpdateSequential(0, h + random.nextGaussian() * 0.5);
+            }
+            filter.filterUpdateSequential(1, a + random.nextGaussian() * 0.25);
+            trace[i] = filter.getState(1);
+        }
+
+        return System.nanoTime() - t0;
+    }
+
+    /**
+     * Time the workload with every engine and select the fastest one equivalent to the reference.
+     * Takes a fraction of a second per engine, call on a background thread.
+     * @param lag Smoother lag to probe with, 0 for the filter alone
+     * @return The selected engine
+     */
+    public Engine probe(int lag) {
+        double[] reference = new double[PROBE_STEPS];
+        double[] trace = new double[PROBE_STEPS];
+        double[] times = new double[engines.size()];
+        Engine best = engines.get(0);
+        double bestTime = Double.MAX_VALUE;
+        int i, k, run;
+
+        for (k = 0; k < engines.size(); k += 1) {
+            Engine engine = engines.get(k);
+            long time = Long.MAX_VALUE;
+
+            // The first run also warms up the JIT
+            for (run = 0; run < PROBE_RUNS; run += 1) {
+                StateEstimator filter = engine.create(3, 2, 0, lag, 1);
+                time = Math.min(time, runWorkload(filter, PROBE_STEPS, k == 0 ? reference : trace));
+            }
+            times[k] = time * 1e-3 / PROBE_STEPS;
+
+            if (k > 0) {
+                for (i = 0; i < PROBE_STEPS; i += 1) {
+                    if (!(Math.abs(trace[i] - reference[i]) <= TOLERANCE)) {
+                        break;
+                    }
+                }
+                if (i < PROBE_STEPS) {
+                    times[k] = Double.NaN;
+                    continue;
+                }
+            }
+
+            if (times[k] < bestTime) {
+                bestTime = times[k];
+                best = engine;
+            }
+        }
+
+        probeTimes = times;
+        selected = best;
+
+        return best;
+    }
+
+    /**
+     * @return Time per step of each engine in the last probe, µs, NaN for engines not equivalent to the reference
+     */
+    public double[] getProbeTimes() {
+        return probeTimes;
+    }
+
+    static String getKey(String appVersion) {
+        return PREF_PREFIX + Build.MANUFACTURER + " " + Build.MODEL + "/" + appVersion;
+    }
+
+    /**
+     * Select the engine stored for this device model and app version. Without one,
+     * keep the current selection and probe on a background thread, storing the result
+     * for the next start.
+     * @return true if a stored selection was found
+     */
+    public boolean restore(final SharedPreferences pref, String appVersion, final int lag) {
+        final String key = getKey(appVersion);
+        Engine stored = getEngine(pref.getString(key, ""));
+
+        if (stored != null) {
+            selected = stored;
+            return true;
+        }
+
+        if (probing) {
+            return false;
+        }
+        probing = true;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Engine engine = probe(lag);
+                pref.edit().putString(key, engine.getName()).apply();
+                probing = false;
+            }
+        }, "Estimator Probe");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+
+        return false;
+    }
+}
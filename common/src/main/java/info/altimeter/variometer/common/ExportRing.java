@@ -0,0 +1,256 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring of fixed-layout state records in a buffer shared with other processes
+ * (SharedMemory, or a memory-mapped file), so that readers can poll it without IPC.
+ *
+ * All values are little endian. Header, 32 bytes:
+ * <pre>
+ *   0  int    magic "VEXP"
+ *   4  int    version
+ *   8  int    record size
+ *  12  int    capacity, records
+ *  16  long   head, number of records written
+ *  24  long   reserved
+ * </pre>
+ * Record n is at 32 + (n % capacity) · record size:
+ * <pre>
+ *   0  long   sequence: 2n + 1 while the record is written, 2n + 2 when complete
+ *   8  long   timestamp, ns (SystemClock.elapsedRealtimeNanos() base)
+ *  16  int    sensor that triggered the update, SensorSource.PRESSURE or ACCELERATION
+ *  20  int    number of states: 2 (VSI) or 3 (IVSI)
+ *  24  double altitude, m
+ *  32  double vertical speed, m/s
+ *  40  double vertical acceleration, m/s², NaN in VSI mode
+ *  48  double altitude variance
+ *  56  double vertical speed variance
+ *  64  double vertical acceleration variance
+ * </pre>
+ * A reader copies a record and checks that its sequence was 2n + 2 before and after,
+ * otherwise the record was being written or has been overwritten.
+ */
+public class ExportRing {
+    public static final int MAGIC = 0x50584556;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 72;
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_RECORD_SIZE = 8;
+    static final int OFFSET_CAPACITY = 12;
+    static final int OFFSET_HEAD = 16;
+
+    /**
+     * @return Buffer size for a ring of the specified number of records
+     */
+    public static int size(int capacity) {
+        return HEADER_SIZE + capacity * RECORD_SIZE;
+    }
+
+    /**
+     * Map a file for writing, the file is created or truncated
+     */
+    public static ByteBuffer map(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(size(capacity));
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size(capacity));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Map an existing file for reading
+     */
+    public static ByteBuffer mapReadOnly(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static class Record {
+        /** Record number, counted from 0 since the writer was created */
+        public long index;
+        public long timestamp;
+        public int sensor;
+        public int stateDim;
+        public double altitude;
+        public double verticalSpeed;
+        public double acceleration;
+        public double altitudeVariance;
+        public double verticalSpeedVariance;
+        public double accelerationVariance;
+    }
+
+    /**
+     * Single writer; can be subscribed to a Variometer directly
+     */
+    public static class Writer implements Variometer.StateListener {
+        final ByteBuffer buffer;
+        final int capacity;
+        long head = 0;
+
+        public Writer(ByteBuffer b) {
+            buffer = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            capacity = (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Buffer too small: " + buffer.capacity());
+            }
+
+            // Readers check the magic number last
+            buffer.putInt(OFFSET_MAGIC, 0);
+            Fences.storeStore();
+            buffer.putInt(OFFSET_VERSION, VERSION);
+            buffer.putInt(OFFSET_RECORD_SIZE, RECORD_SIZE);
+            buffer.putInt(OFFSET_CAPACITY, capacity);
+            buffer.putLong(OFFSET_HEAD, 0);
+            Fences.storeStore();
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void write(long timestamp, int sensor, int stateDim,
+                          double h, double v, double a, double var_h, double var_v, double var_a) {
+            int off = HEADER_SIZE + (int) (head % capacity) * RECORD_SIZE;
+            long seq = 2 * head + 1;
+
+            buffer.putLong(off, seq);
+            Fences.storeStore();
+            buffer.putLong(off + 8, timestamp);
+            buffer.putInt(off + 16, sensor);
+            buffer.putInt(off + 20, stateDim);
+            buffer.putDouble(off + 24, h);
+            buffer.putDouble(off + 32, v);
+            buffer.putDouble(off + 40, a);
+            buffer.putDouble(off + 48, var_h);
+            buffer.putDouble(off + 56, var_v);
+            buffer.putDouble(off + 64, var_a);
+            Fences.storeStore();
+            buffer.putLong(off, seq + 1);
+
+            // A reader that sees the new head finds the record complete
+            Fences.storeStore();
+            head += 1;
+            buffer.putLong(OFFSET_HEAD, head);
+        }
+
+        @Override
+        public void onStateUpdate(Variometer.StateUpdate u) {
+            double a = Double.NaN;
+            double var_a = Double.NaN;
+
+            if (u.stateDim > 2) {
+                a = u.x[2];
+                var_a = u.variance[2];
+            }
+
+            write(u.timestamp, u.sensor, u.stateDim, u.x[0], u.x[1], a, u.variance[0], u.variance[1], var_a);
+        }
+    }
+
+    /**
+     * Any number of readers, in any process; readers never modify the buffer
+     */
+    public static class Reader {
+        final ByteBuffer buffer;
+        final int capacity;
+        final int recordSize;
+
+        public Reader(ByteBuffer b) throws IOException {
+            buffer = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(OFFSET_MAGIC) != MAGIC) {
+                throw new IOException("Not a state export buffer");
+            }
+            Fences.loadLoad();
+            if (buffer.getInt(OFFSET_VERSION) != VERSION) {
+                throw new IOException("Unsupported version " + buffer.getInt(OFFSET_VERSION));
+            }
+
+            capacity = buffer.getInt(OFFSET_CAPACITY);
+            recordSize = buffer.getInt(OFFSET_RECORD_SIZE);
+            if (capacity < 1 || recordSize < RECORD_SIZE
+                    || buffer.capacity() < HEADER_SIZE + (long) capacity * recordSize) {
+                throw new IOException("Invalid state export header");
+            }
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @return Number of records written so far
+         */
+        public long getHead() {
+            long head = buffer.getLong(OFFSET_HEAD);
+            Fences.loadLoad();
+            return head;
+        }
+
+        /**
+         * Copy record n
+         * @return false if the record has not been written yet, or has been overwritten
+         */
+        public boolean read(long n, Record r) {
+            int off = HEADER_SIZE + (int) (n % capacity) * recordSize;
+            long expected = 2 * n + 2;
+
+            if (n < 0 || buffer.getLong(off) != expected) {
+                return false;
+            }
+            Fences.loadLoad();
+
+            r.index = n;
+            r.timestamp = buffer.getLong(off + 8);
+            r.sensor = buffer.getInt(off + 16);
+            r.stateDim = buffer.getInt(off + 20);
+            r.altitude = buffer.getDouble(off + 24);
+            r.verticalSpeed = buffer.getDouble(off + 32);
+            r.acceleration = buffer.getDouble(off + 40);
+            r.altitudeVariance = buffer.getDouble(off + 48);
+            r.verticalSpeedVariance = buffer.getDouble(off + 56);
+            r.accelerationVariance = buffer.getDouble(off + 64);
+
+            Fences.loadLoad();
+            return buffer.getLong(off) == expected;
+        }
+
+        /**
+         * Copy the most recent record
+         * @return false if nothing has been written yet
+         */
+        public boolean readLatest(Record r) {
+            long head;
+
+            do {
+                head = getHead();
+                if (head == 0) {
+                    return false;
+                }
+            } while (!read(head - 1, r));
+
+            return true;
+        }
+    }
+}
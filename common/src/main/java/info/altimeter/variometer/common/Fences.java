@@ -0,0 +1,95 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for the export ring, where another process reads and writes the shared
+ * buffer with plain accesses and no Java volatile can order them.
+ *
+ * VarHandle fences need API 33; older ART has the same fences in sun.misc.Unsafe.
+ * Those are resolved once into method handles bound to the Unsafe instance,
+ * invokeExact() calls them without boxing or allocating.
+ */
+final class Fences {
+    private static final MethodHandle loadFence;
+    private static final MethodHandle storeFence;
+
+    private Fences() {
+    }
+
+    /*
+     *  VarHandle is only linked here, older runtimes fail on the first call
+     */
+    private static class VarHandleFences {
+        static void loadLoad() {
+            VarHandle.loadLoadFence();
+        }
+
+        static void storeStore() {
+            VarHandle.storeStoreFence();
+        }
+    }
+
+    static {
+        MethodHandle load = null;
+        MethodHandle store = null;
+
+        try {
+            VarHandleFences.loadLoad();
+            VarHandleFences.storeStore();
+        } catch (LinkageError e) {
+            try {
+                Class<?> c = Class.forName("sun.misc.Unsafe");
+                Field f = c.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                Object unsafe = f.get(null);
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                load = lookup.unreflect(c.getMethod("loadFence")).bindTo(unsafe);
+                store = lookup.unreflect(c.getMethod("storeFence")).bindTo(unsafe);
+            } catch (ReflectiveOperationException e2) {
+                throw new IllegalStateException("No memory fences", e2);
+            }
+        }
+
+        loadFence = load;
+        storeFence = store;
+    }
+
+    private static void invoke(MethodHandle fence) {
+        try {
+            fence.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads before the fence are not reordered with loads after it
+     */
+    static void loadLoad() {
+        if (loadFence == null) {
+            VarHandleFences.loadLoad();
+        } else {
+            invoke(loadFence);
+        }
+    }
+
+    /**
+     * Stores before the fence are not reordered with stores after it
+     */
+    static void storeStore() {
+        if (storeFence == null) {
+            VarHandleFences.storeStore();
+        } else {
+            invoke(storeFence);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Sensor source that replays a recorded sensor log.
+ * All events are delivered synchronously from start(), as fast as the receiver can take them.
+ *
+ * Log format (big-endian):
+ *   header: int MAGIC, int VERSION, double pressure period, double acceleration period, double rotation period
+ *   record: byte type, long timestamp (ns), followed by 1, 3 or 4 floats depending on type
+ */
+public class FileSensorSource implements SensorSource {
+    public static final int MAGIC = 0x564c4f47;   // "VLOG"
+    public static final int VERSION = 1;
+
+    public static final byte RECORD_PRESSURE = 0;
+    public static final byte RECORD_ACCELERATION = 1;
+    public static final byte RECORD_LINEAR_ACCELERATION = 2;
+    public static final byte RECORD_ROTATION = 3;
+
+    static final int BUFFER_SIZE = 65536;
+
+    File file;
+    double[] periods = new double[3];
+    long count = 0;
+    IOException error = null;
+    volatile boolean stopRequested = false;
+
+    public FileSensorSource(File f) throws IOException {
+        file = f;
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            readHeader(in, periods);
+        } finally {
+            in.close();
+        }
+    }
+
+    static void readHeader(DataInputStream in, double[] periods) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a sensor log");
+        }
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unsupported sensor log version");
+        }
+        periods[PRESSURE] = in.readDouble();
+        periods[ACCELERATION] = in.readDouble();
+        periods[ROTATION] = in.readDouble();
+    }
+
+    @Override
+    public double getMinPeriod(int sensor) {
+        return periods[sensor];
+    }
+
+    /**
+     * @return Number of events delivered by the last start()
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void start(Receiver receiver, double pressurePeriod, double accelerationPeriod, double rotationPeriod) {
+        stopRequested = false;
+        count = 0;
+        error = null;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            try {
+                readHeader(in, periods);
+                while (!stopRequested) {
+                    if (!replayRecord(in, receiver)) {
+                        break;
+                    }
+                    count += 1;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Events read before the error have been delivered
+            error = e;
+        }
+    }
+
+    /**
+     * A log that ends within a record is not an error, the complete records are replayed
+     * @return Error that stopped the last start(), null if the whole log was replayed
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void stop() {
+        stopRequested = true;
+    }
+
+    static boolean replayRecord(DataInputStream in, Receiver receiver) throws IOException {
+        int type = in.read();
+        long t;
+
+        if (type < 0) {
+            return false;
+        }
+
+        try {
+            t = in.readLong();
+            switch (type) {
+            case RECORD_PRESSURE:
+                receiver.onPressure(t, in.readFloat());
+                break;
+            case RECORD_ACCELERATION:
+            case RECORD_LINEAR_ACCELERATION:
+                receiver.onAcceleration(t, in.readFloat(), in.readFloat(), in.readFloat(),
+                        type == RECORD_LINEAR_ACCELERATION);
+                break;
+            case RECORD_ROTATION:
+                receiver.onRotation(t, in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Receiver that records sensor events into a log file
+     */
+    public static class Writer implements Receiver, Closeable {
+        DataOutputStream out;
+        IOException error = null;
+
+        public Writer(File f, double pressurePeriod, double accelerationPeriod, double rotationPeriod) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(pressurePeriod);
+            out.writeDouble(accelerationPeriod);
+            out.writeDouble(rotationPeriod);
+        }
+
+        @Override
+        public void onPressure(long timestamp, float p) {
+            try {
+                out.writeByte(RECORD_PRESSURE);
+                out.writeLong(timestamp);
+                out.writeFloat(p);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        public void onAcceleration(long timestamp, float x, float y, float z, boolean linear) {
+            try {
+                out.writeByte(linear ? RECORD_LINEAR_ACCELERATION : RECORD_ACCELERATION);
+                out.writeLong(timestamp);
+                out.writeFloat(x);
+                out.writeFloat(y);
+                out.writeFloat(z);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        public void onRotation(long timestamp, float x, float y, float z, float w) {
+            try {
+                out.writeByte(RECORD_ROTATION);
+                out.writeLong(timestamp);
+                out.writeFloat(x);
+                out.writeFloat(y);
+                out.writeFloat(z);
+                out.writeFloat(w);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
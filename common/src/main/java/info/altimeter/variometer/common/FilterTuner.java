@@ -0,0 +1,247 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Filter parameter sweep over recorded flights.
+ *
+ * Every configuration is replayed through Variometer over all flights.
+ * The score is the distance of the mean normalized innovation squared (NIS) of altitude updates
+ * from its expected value 1, plus a penalty for smoother lag. Lower is better.
+ */
+public class FilterTuner {
+
+    /** Penalty per second of smoother lag */
+    double lagWeight = 1.0;
+
+    List<SensorLog> flights = new ArrayList<>();
+    ForkJoinPool pool;
+    boolean inertial;
+
+    public static class Config {
+        /** Process noise, sigma1 (VSI) or sigma2 (IVSI) */
+        public double sigma_process;
+        public double sigma_p;
+        public double sigma_a;
+        public int lag;
+
+        public long updates;
+        public double nis;
+        public double residualMean;
+        public double residualVariance;
+        public double delay;
+        public double score = Double.NaN;
+
+        public Config(double process, double p, double a, int smootherLag) {
+            sigma_process = process;
+            sigma_p = p;
+            sigma_a = a;
+            lag = smootherLag;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "score %.4f  sigma %.5f  sigma_p %.4f  sigma_a %.4f  lag %d  NIS %.3f  residual %.4f ± %.4f m  delay %.3f s",
+                    score, sigma_process, sigma_p, sigma_a, lag, nis,
+                    residualMean, Math.sqrt(residualVariance), delay);
+        }
+    }
+
+    public FilterTuner(boolean ivsi, int threads) {
+        inertial = ivsi;
+        pool = new ForkJoinPool(threads);
+    }
+
+    public void addFlight(SensorLog log) {
+        flights.add(log);
+    }
+
+    /**
+     * Load all sensor logs in the directory
+     */
+    public int loadFlights(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        int n = 0;
+
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+
+        Arrays.sort(files);
+        for (File f : files) {
+            if (f.isFile()) {
+                addFlight(SensorLog.load(f));
+                n += 1;
+            }
+        }
+
+        return n;
+    }
+
+    public void setLagWeight(double weight) {
+        lagWeight = weight;
+    }
+
+    public void evaluate(Config config) {
+        InnovationStatistics stats = new InnovationStatistics(inertial ? 2 : 1);
+        InnovationStatistics.Snapshot snapshot = stats.newSnapshot();
+
+        // Statistics accumulate over all flights
+        for (SensorLog flight : flights) {
+            Variometer variometer = new Variometer(inertial, config.lag);
+            variometer.setProcessNoise(config.sigma_process);
+            variometer.setPressureNoise(config.sigma_p);
+            variometer.setAccelerometerNoise(config.sigma_a);
+            variometer.setStatistics(stats);
+            variometer.start(flight);
+            variometer.stop();
+            config.delay = config.lag > 1 ? (config.lag - 1) * variometer.filterPeriod : 0;
+        }
+
+        // Input 0 is altitude
+        stats.snapshot(snapshot);
+        config.updates = snapshot.count[0];
+        if (config.updates == 0) {
+            config.score = Double.POSITIVE_INFINITY;
+            return;
+        }
+
+        config.nis = snapshot.meanNis[0];
+        config.residualMean = snapshot.meanResidual[0];
+        config.residualVariance = snapshot.residualVariance[0];
+        config.score = Math.abs(Math.log(config.nis)) + lagWeight * config.delay;
+    }
+
+    class SweepTask extends RecursiveAction {
+        Config[] configs;
+        int start, end;
+
+        SweepTask(Config[] c, int first, int last) {
+            configs = c;
+            start = first;
+            end = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                evaluate(configs[start]);
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new SweepTask(configs, start, middle), new SweepTask(configs, middle, end));
+        }
+    }
+
+    /**
+     * Evaluate all configurations in parallel and sort them by score
+     */
+    public void sweep(Config[] configs) {
+        if (configs.length > 0) {
+            pool.invoke(new SweepTask(configs, 0, configs.length));
+        }
+        Arrays.sort(configs, (a, b) -> Double.compare(a.score, b.score));
+    }
+
+    /**
+     * Grid of n values for each noise parameter, logarithmically spaced
+     * within [x/range, x·range] around the defaults, for every lag in the list
+     */
+    public static Config[] grid(Config center, double range, int n, int[] lags) {
+        Config[] configs = new Config[n * n * n * lags.length];
+        double[] k = new double[n];
+        int i, j, m, l, c = 0;
+
+        for (i = 0; i < n; i += 1) {
+            k[i] = n > 1 ? Math.pow(range, 2.0 * i / (n - 1) - 1) : 1;
+        }
+
+        for (l = 0; l < lags.length; l += 1) {
+            for (i = 0; i < n; i += 1) {
+                for (j = 0; j < n; j += 1) {
+                    for (m = 0; m < n; m += 1) {
+                        configs[c++] = new Config(center.sigma_process * k[i],
+                                center.sigma_p * k[j], center.sigma_a * k[m], lags[l]);
+                    }
+                }
+            }
+        }
+
+        return configs;
+    }
+
+    /**
+     * Random configurations, log-uniform within [x/range, x·range] around the defaults
+     */
+    public static Config[] random(Config center, double range, int count, int maxLag, long seed) {
+        Random random = new Random(seed);
+        Config[] configs = new Config[count];
+        double lr = Math.log(range);
+        int i;
+
+        for (i = 0; i < count; i += 1) {
+            configs[i] = new Config(
+                    center.sigma_process * Math.exp(lr * (2 * random.nextDouble() - 1)),
+                    center.sigma_p * Math.exp(lr * (2 * random.nextDouble() - 1)),
+                    center.sigma_a * Math.exp(lr * (2 * random.nextDouble() - 1)),
+                    random.nextInt(maxLag + 1));
+        }
+
+        return configs;
+    }
+
+    /**
+     * Usage: FilterTuner directory [vsi|ivsi] [grid|random] [count]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: FilterTuner directory [vsi|ivsi] [grid|random] [count]");
+            return;
+        }
+
+        boolean ivsi = args.length < 2 || !args[1].equals("vsi");
+        boolean grid = args.length >= 3 && args[2].equals("grid");
+        int count = args.length < 4 ? 1000 : Integer.parseInt(args[3]);
+
+        FilterTuner tuner = new FilterTuner(ivsi, Runtime.getRuntime().availableProcessors());
+        int n = tuner.loadFlights(new File(args[0]));
+        double duration = 0;
+        for (SensorLog log : tuner.flights) {
+            duration += log.getDuration();
+        }
+        System.out.println(String.format(Locale.US, "%d flights, %.1f h", n, duration / 3600));
+
+        Config center = new Config(ivsi ? 0.0039 : 0.0625, 0.06, 0.002942, 5);
+        Config[] configs;
+        if (grid) {
+            int k = Math.max(1, (int) Math.round(Math.cbrt(count / 5.0)));
+            configs = grid(center, 10, k, new int[] { 0, 5, 10, 20, 50 });
+        } else {
+            configs = random(center, 10, count, 50, 1);
+        }
+
+        long t0 = System.nanoTime();
+        tuner.sweep(configs);
+        double elapsed = (System.nanoTime() - t0) * 1e-9;
+
+        System.out.println(String.format(Locale.US, "%d configurations in %.1f s", configs.length, elapsed));
+        for (int i = 0; i < Math.min(10, configs.length); i += 1) {
+            System.out.println(configs[i]);
+        }
+    }
+}
@@ -5,25 +5,19 @@
 
 package info.altimeter.variometer.common;
 
-import static org.ejml.dense.row.CommonOps_DDRM.add;
-import static org.ejml.dense.row.CommonOps_DDRM.extractColumn;
-import static org.ejml.dense.row.CommonOps_DDRM.insert;
 import static org.ejml.dense.row.CommonOps_DDRM.mult;
-import static org.ejml.dense.row.CommonOps_DDRM.multAdd;
 import static org.ejml.dense.row.CommonOps_DDRM.multTransA;
 import static org.ejml.dense.row.CommonOps_DDRM.scale;
 import static org.ejml.dense.row.CommonOps_DDRM.subtract;
 import static org.ejml.dense.row.CommonOps_DDRM.transpose;
 
-public class FixedLagSmoother extends KalmanFilter {
+public class FixedLagSmoother extends KalmanFilter implements StateSmoother {
     int N;
     int smoothInputIndex;
 
-    /** [ x<sub>k-N+1|k</sub>, ..., x<sub>k-1|k</sub>, x<sub>k|k</sub> ] */
-    Matrix X;
+    /** x<sub>k-N+1|k</sub>, ..., x<sub>k-1|k</sub>, x<sub>k|k</sub> */
+    StateHistory history;
 
-    /** x<sub>k-i | k</sub> */
-    Matrix x_i;
     Matrix P_i;
 
     /** F<sub>s</sub> = (F - KH)<sup>T</sup> */
@@ -32,38 +26,36 @@ public class FixedLagSmoother extends KalmanFilter {
     /** H<sup>T</sup>S<sup>-1</sup> */
     Matrix HTSI, HTSI_seq;
 
-    /** Number of data points available */
-    int count;
-    int k;
+    /** H<sup>T</sup>S<sup>-1</sup>y, so that the correction of x<sub>k-i</sub> is P<sub>i</sub>w */
+    Matrix w;
+
+    /** Receives the steps leaving the window, null if not used */
+    Sink sink = null;
+    /** Sample time of the next step */
+    long time = 0;
+    double[] sinkState;
 
     public FixedLagSmoother(int state, int input, int controls, int lag) {
         super(state, input, controls);
 
         N = lag;
-        count = 0;
-        k = 0;
-        X = new Matrix(stateDim, lag);
-        x_i = new Matrix(stateDim, 1);
+        history = new StateHistory(stateDim, lag);
         P_i = new Matrix(stateDim, stateDim);
         Fs = new Matrix(stateDim, stateDim);
         HTSI = new Matrix(stateDim, inputDim);
         HTSI_seq = new Matrix(stateDim, 1);
+        w = new Matrix(stateDim, 1);
+        sinkState = new double[stateDim];
 
         smoothInputIndex = inputDim - 1;
     }
 
     @Override
     public int filterUpdate(double[] input) {
-        int i, t;
-
         super.filterUpdate(input);
-        insert(x, X, 0, k);
-
-        if (count < N) {
-            count += 1;
-        }
+        append();
 
-        if (count < 2) {
+        if (history.count < 2) {
             return 0;
         }
 
@@ -71,43 +63,17 @@ public class FixedLagSmoother extends KalmanFilter {
         subtract(F, KH, Fs);
         transpose(Fs);
 
-        //  H⸆ S⁻¹
+        //  w = H⸆S⁻¹y
         multTransA(H, S_inv, HTSI);
+        mult(HTSI, y, w);
 
-        //  P₀ = P⁻
-        P_i.setTo(P_prior);
-
-        for (i = 1; i < count; i += 1) {
-            t = k - i;
-            if (t < 0) {
-                t += N;
-            }
-
-            //  Kᵢ₊₁ = Pᵢ H⸆ S⁻¹
-            mult(P_i, HTSI, K);
-
-            extractColumn(X, t, x_i);
-            multAdd(K, y, x_i);
-            insert(x_i, X, 0, t);
-
-            if (i + 1 < count) {
-                //  Pᵢ = P⁻(Fₛ)ⁱ
-                mult(P_i, Fs, tmp_ss);
-                P_i.setTo(tmp_ss);
-            }
-        }
-
-        if (++k >= N) {
-            k -= N;
-        }
+        smooth();
 
         return 0;
     }
 
     @Override
     public int filterUpdateSequential(int index, double z_i) {
-        int i, t;
-
         super.filterUpdateSequential(index, z_i);
 
         // Run smoother only on one input
@@ -115,13 +81,9 @@ public class FixedLagSmoother extends KalmanFilter {
             return 0;
         }
 
-        insert(x, X, 0, k);
+        append();
 
-        if (count < N) {
-            count += 1 ;
-        }
-
-        if (count < 2) {
+        if (history.count < 2) {
             return 0;
         }
 
@@ -129,73 +91,121 @@ public class FixedLagSmoother extends KalmanFilter {
         subtract(F, KH, Fs);
         transpose(Fs);
 
-        double y_i = y.get(index, 0);
+        //  w = Hᵢ⸆Sᵢ⁻¹yᵢ
         transpose(H_seq, HTSI_seq);
-        scale(s_inv, HTSI_seq);
+        scale(s_inv * y.get(index, 0), HTSI_seq, w);
+
+        smooth();
+
+        return 0;
+    }
+
+    /*
+     *  Add the new step; when the window is full, the oldest step leaves it with its final state
+     */
+    void append() {
+        if (sink != null && history.count == history.capacity) {
+            emit(history.count - 1);
+        }
+        history.add(x.data, time);
+    }
+
+    void emit(int age) {
+        int offset = history.offset(age);
+        int j;
+
+        for (j = 0; j < stateDim; j += 1) {
+            sinkState[j] = history.data[offset + j];
+        }
+        sink.onSmoothedState(history.time[offset / stateDim], sinkState);
+    }
+
+    @Override
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void setTime(long timestamp) {
+        time = timestamp;
+    }
+
+    @Override
+    public void flush() {
+        int i;
+
+        if (sink != null) {
+            for (i = history.count - 1; i >= 0; i -= 1) {
+                emit(i);
+            }
+        }
+        history.clear();
+    }
+
+    /*
+     *  Backward pass over the window, newest to oldest
+     */
+    void smooth() {
+        double[] h = history.data;
+        double[] p = P_i.data;
+        int i, j, m, offset, row;
 
         //  P₀ = P⁻
         P_i.setTo(P_prior);
 
-        for (i = 1; i < count; i += 1) {
-            t = k - i;
-            if (t < 0) {
-                t += N;
+        for (i = 1; i < history.count; i += 1) {
+            offset = history.offset(i);
+
+            //  xₖ₋ᵢ += Kᵢ₊₁y = PᵢH⸆S⁻¹y, in place
+            row = 0;
+            for (j = 0; j < stateDim; j += 1) {
+                double sum = 0;
+                for (m = 0; m < stateDim; m += 1) {
+                    sum += p[row + m] * w.data[m];
+                }
+                h[offset + j] += sum;
+                row += stateDim;
             }
-            //  Kᵢ₊₁ = Pᵢ H⸆ S⁻¹
-            mult(P_i, HTSI_seq, K_seq);
-
-            extractColumn(X, t, x_i);
-            add(x_i, y_i, K_seq, x_i);
-            insert(x_i, X, 0, t);
 
-            if (i + 1 < count) {
+            if (i + 1 < history.count) {
                 //  Pᵢ = P⁻(Fₛ)ⁱ
                 mult(P_i, Fs, tmp_ss);
                 P_i.setTo(tmp_ss);
             }
         }
-
-        if (++k >= N) {
-            k -= N;
-        }
-
-        return 0;
     }
 
     @Override
     public int setState(double[] src) {
-        int i, j;
-
-        for (i = 0; i < N; i += 1) {
-            for (j = 0; j < stateDim; j += 1)
-            X.set(i, j, src[j]);
-        }
-        count = 0;
+        flush();
 
         return super.setState(src);
     }
 
     @Override
     public int getState(double[] dst) {
-        if (count == 0)
+        if (history.count == 0)
             return super.getState(dst);
 
         assert(dst.length == stateDim);
 
-        int i = count - 1;
-        int t = k - i;
-        if (t < 0) {
-            t += N;
-        }
+        int offset = history.offset(history.count - 1);
         int j;
 
         for (j = 0; j < stateDim; j += 1) {
-            dst[j] = X.get(j, t);
+            dst[j] = history.data[offset + j];
         }
 
         return stateDim;
     }
 
+    /**
+     * The backward pass needs the covariance and gains of every step, the interval stays 1
+     */
+    @Override
+    public void setCovarianceInterval(int interval) {
+    }
+
     public int setSmoothingInput(int index) {
         if (index < inputDim) {
             smoothInputIndex = index;
@@ -0,0 +1,219 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import static org.ejml.dense.row.CommonOps_FDRM.mult;
+import static org.ejml.dense.row.CommonOps_FDRM.multTransA;
+import static org.ejml.dense.row.CommonOps_FDRM.scale;
+import static org.ejml.dense.row.CommonOps_FDRM.subtract;
+import static org.ejml.dense.row.CommonOps_FDRM.transpose;
+
+/**
+ * Single precision version of FixedLagSmoother
+ */
+public class FloatFixedLagSmoother extends FloatKalmanFilter implements StateSmoother {
+    int N;
+    int smoothInputIndex;
+
+    /** x<sub>k-N+1|k</sub>, ..., x<sub>k-1|k</sub>, x<sub>k|k</sub> */
+    FloatStateHistory history;
+
+    FloatMatrix P_i;
+
+    /** F<sub>s</sub> = (F - KH)<sup>T</sup> */
+    FloatMatrix Fs;
+
+    /** H<sup>T</sup>S<sup>-1</sup> */
+    FloatMatrix HTSI, HTSI_seq;
+
+    /** H<sup>T</sup>S<sup>-1</sup>y, so that the correction of x<sub>k-i</sub> is P<sub>i</sub>w */
+    FloatMatrix w;
+
+    /** Receives the steps leaving the window, null if not used */
+    Sink sink = null;
+    /** Sample time of the next step */
+    long time = 0;
+    double[] sinkState;
+
+    public FloatFixedLagSmoother(int state, int input, int controls, int lag) {
+        super(state, input, controls);
+
+        N = lag;
+        history = new FloatStateHistory(stateDim, lag);
+        P_i = new FloatMatrix(stateDim, stateDim);
+        Fs = new FloatMatrix(stateDim, stateDim);
+        HTSI = new FloatMatrix(stateDim, inputDim);
+        HTSI_seq = new FloatMatrix(stateDim, 1);
+        w = new FloatMatrix(stateDim, 1);
+        sinkState = new double[stateDim];
+
+        smoothInputIndex = inputDim - 1;
+    }
+
+    @Override
+    public int filterUpdate(double[] input) {
+        super.filterUpdate(input);
+        append();
+
+        if (history.count < 2) {
+            return 0;
+        }
+
+        //  Fₛ = (F - KH)⸆
+        subtract(F, KH, Fs);
+        transpose(Fs);
+
+        //  w = H⸆S⁻¹y
+        multTransA(H, S_inv, HTSI);
+        mult(HTSI, y, w);
+
+        smooth();
+
+        return 0;
+    }
+
+    @Override
+    public int filterUpdateSequential(int index, double z_i) {
+        super.filterUpdateSequential(index, z_i);
+
+        // Run smoother only on one input
+        if (index != smoothInputIndex) {
+            return 0;
+        }
+
+        append();
+
+        if (history.count < 2) {
+            return 0;
+        }
+
+        //  Fₛ = (F - KH)⸆
+        subtract(F, KH, Fs);
+        transpose(Fs);
+
+        //  w = Hᵢ⸆Sᵢ⁻¹yᵢ
+        transpose(H_seq, HTSI_seq);
+        scale(s_inv * y.get(index, 0), HTSI_seq, w);
+
+        smooth();
+
+        return 0;
+    }
+
+    /*
+     *  Add the new step; when the window is full, the oldest step leaves it with its final state
+     */
+    void append() {
+        if (sink != null && history.count == history.capacity) {
+            emit(history.count - 1);
+        }
+        history.add(x.data, time);
+    }
+
+    void emit(int age) {
+        int offset = history.offset(age);
+        int j;
+
+        for (j = 0; j < stateDim; j += 1) {
+            sinkState[j] = history.data[offset + j];
+        }
+        sink.onSmoothedState(history.time[offset / stateDim], sinkState);
+    }
+
+    @Override
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void setTime(long timestamp) {
+        time = timestamp;
+    }
+
+    @Override
+    public void flush() {
+        int i;
+
+        if (sink != null) {
+            for (i = history.count - 1; i >= 0; i -= 1) {
+                emit(i);
+            }
+        }
+        history.clear();
+    }
+
+    /*
+     *  Backward pass over the window, newest to oldest
+     */
+    void smooth() {
+        float[] h = history.data;
+        float[] p = P_i.data;
+        int i, j, m, offset, row;
+
+        //  P₀ = P⁻
+        P_i.setTo(P_prior);
+
+        for (i = 1; i < history.count; i += 1) {
+            offset = history.offset(i);
+
+            //  xₖ₋ᵢ += Kᵢ₊₁y = PᵢH⸆S⁻¹y, in place
+            row = 0;
+            for (j = 0; j < stateDim; j += 1) {
+                float sum = 0;
+                for (m = 0; m < stateDim; m += 1) {
+                    sum += p[row + m] * w.data[m];
+                }
+                h[offset + j] += sum;
+                row += stateDim;
+            }
+
+            if (i + 1 < history.count) {
+                //  Pᵢ = P⁻(Fₛ)ⁱ
+                mult(P_i, Fs, tmp_ss);
+                P_i.setTo(tmp_ss);
+            }
+        }
+    }
+
+    @Override
+    public int setState(double[] src) {
+        flush();
+
+        return super.setState(src);
+    }
+
+    @Override
+    public int getState(double[] dst) {
+        if (history.count == 0)
+            return super.getState(dst);
+
+        assert(dst.length == stateDim);
+
+        int offset = history.offset(history.count - 1);
+        int j;
+
+        for (j = 0; j < stateDim; j += 1) {
+            dst[j] = history.data[offset + j];
+        }
+
+        return stateDim;
+    }
+
+    /**
+     * The backward pass needs the covariance and gains of every step, the interval stays 1
+     */
+    @Override
+    public void setCovarianceInterval(int interval) {
+    }
+
+    public int setSmoothingInput(int index) {
+        if (index < inputDim) {
+            smoothInputIndex = index;
+        }
+
+        return smoothInputIndex;
+    }
+}
@@ -0,0 +1,574 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import org.ejml.data.FMatrixRMaj;
+import org.ejml.dense.row.factory.LinearSolverFactory_FDRM;
+import org.ejml.interfaces.linsol.LinearSolverDense;
+
+import static org.ejml.dense.row.CommonOps_FDRM.addEquals;
+import static org.ejml.dense.row.CommonOps_FDRM.extractRow;
+import static org.ejml.dense.row.CommonOps_FDRM.mult;
+import static org.ejml.dense.row.CommonOps_FDRM.multAdd;
+import static org.ejml.dense.row.CommonOps_FDRM.multAddTransB;
+import static org.ejml.dense.row.CommonOps_FDRM.multTransB;
+import static org.ejml.dense.row.CommonOps_FDRM.scale;
+import static org.ejml.dense.row.CommonOps_FDRM.setIdentity;
+import static org.ejml.dense.row.CommonOps_FDRM.subtract;
+import static org.ejml.dense.row.CommonOps_FDRM.subtractEquals;
+
+/**
+ * Single precision version of KalmanFilter, with half the memory traffic.
+ * Parameters and results are passed as double, the state and all matrices are float.
+ */
+public class FloatKalmanFilter implements StateEstimator {
+    /** State vector dimension */
+    int stateDim;
+
+    /** Input vector dimension */
+    int inputDim;
+
+    /** Control vector dimension */
+    int controlDim;
+
+    /** Measurement input */
+    FloatMatrix z;
+
+    /** Control input */
+    FloatMatrix u;
+
+    /** State estimation */
+    FloatMatrix x;
+
+    /** Predicted (prior) state estimation */
+    FloatMatrix x_prior;
+
+    /** Residual (Innovation) */
+    FloatMatrix y;
+
+    /** Measurement function (Observation model) */
+    FloatMatrix H, H_seq;
+
+    /** State transition model */
+    FloatMatrix F;
+
+    /** Control function */
+    FloatMatrix B = null;
+
+    /** Process noise covariance */
+    FloatMatrix Q;
+
+    /** Observation noise covariance (measurement uncertainty) */
+    FloatMatrix R;
+
+    /** Innovation covariance, S = HPH<sup>T</sup> + R */
+    FloatMatrix S;
+
+    /** Inverse innovation covariance, S<sup>-1</sup> */
+    FloatMatrix S_inv;
+
+    /** Inverse system uncertainty for sequential updates */
+    float s_inv;
+
+    /** Kalman gain */
+    FloatMatrix K, K_seq;
+
+    /** State covariance (state uncertainty) */
+    FloatMatrix P;
+    FloatMatrix P_prior;     // Prior Covariance
+
+    // Temporary matrices are only allocated once
+    /** PH<sup>T</sup> */
+    FloatMatrix PHT, PHT_seq;
+    FloatMatrix KH;
+
+    /** (I - KH) */
+    FloatMatrix IMKH;
+    FloatMatrix tmp_11;
+    FloatMatrix tmp_ss, tmp_si;
+
+    /** Optional innovation statistics, null when disabled */
+    InnovationStatistics statistics = null;
+
+    /*
+     *  Split rates, see KalmanFilter
+     */
+    int covarianceInterval = 1;
+    double driftThreshold = 4;
+    boolean refreshing = true;
+    boolean converging = false;
+    int predictions = 0;
+    int cachedInputs = 0;
+    int refreshedInputs = 0;
+    int refreshCycles = 0;
+    FloatMatrix K_last;
+    float[] cachedSInv;
+    double[] recentNis;
+    double[] baselineNis;
+
+    private LinearSolverDense<FMatrixRMaj> solver;
+
+    public FloatKalmanFilter(int state, int input, int ctrls) {
+        stateDim = state;
+        inputDim = input;
+        controlDim = ctrls;
+
+        P = new FloatMatrix(stateDim, stateDim);
+        setIdentity(P);
+        u = new FloatMatrix(controlDim, 1);
+        x = new FloatMatrix(stateDim, 1);
+        x_prior = new FloatMatrix(stateDim, 1);
+        z = new FloatMatrix(inputDim, 1);
+
+        PHT = new FloatMatrix(stateDim, inputDim);
+        K = new FloatMatrix(stateDim, inputDim);
+        KH = new FloatMatrix(stateDim, stateDim);
+        IMKH = new FloatMatrix(stateDim, stateDim);
+
+        //  In sequential processing, some matrices have different sizes
+        PHT_seq = new FloatMatrix(stateDim, 1);
+        K_seq = new FloatMatrix(stateDim, 1);
+
+        tmp_11 = new FloatMatrix(1, 1);
+        tmp_ss = new FloatMatrix(stateDim, stateDim);
+        tmp_si = new FloatMatrix(stateDim, inputDim);
+        S_inv = new FloatMatrix(inputDim, inputDim);
+        P_prior = new FloatMatrix(stateDim, stateDim);
+        y = new FloatMatrix(inputDim, 1);
+        if (controlDim > 0) {
+            B = new FloatMatrix(stateDim, controlDim);
+        }
+        H = new FloatMatrix(inputDim, stateDim);
+        H.set(0, 0, 1.0f);
+        if (stateDim == 3 && inputDim == 2) {
+            H.set(1, 2, 1.0f);
+        }
+        H_seq = new FloatMatrix(1, stateDim);
+        R = new FloatMatrix(inputDim, inputDim);
+        S = new FloatMatrix(inputDim, inputDim);
+        F = new FloatMatrix(stateDim, stateDim);
+        Q = new FloatMatrix(stateDim, stateDim);
+        K_last = new FloatMatrix(stateDim, inputDim);
+        cachedSInv = new float[inputDim];
+        recentNis = new double[inputDim];
+        baselineNis = new double[inputDim];
+
+        solver = LinearSolverFactory_FDRM.symmPosDef(stateDim);
+    }
+
+    @Override
+    public void setStatistics(InnovationStatistics stats) {
+        assert (stats == null || stats.getInputDim() == inputDim);
+        statistics = stats;
+    }
+
+    public InnovationStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public void setCovarianceInterval(int interval) {
+        covarianceInterval = Math.max(1, interval);
+        startRefresh();
+    }
+
+    public void setDriftThreshold(double threshold) {
+        driftThreshold = threshold;
+    }
+
+    void startRefresh() {
+        refreshing = true;
+        predictions = 0;
+        refreshedInputs = 0;
+        refreshCycles = 0;
+    }
+
+    void refreshed(int inputs) {
+        int i, j;
+
+        cachedInputs |= inputs;
+        refreshedInputs |= inputs;
+
+        if (covarianceInterval == 1 || refreshedInputs != cachedInputs) {
+            return;
+        }
+        refreshedInputs = 0;
+
+        // The first cycle starts from the covariance of another phase of the inputs
+        refreshCycles += 1;
+        if (refreshCycles < 2) {
+            return;
+        }
+
+        // Tighter when running at the full rate, where the gains may converge slowly
+        double tolerance = converging ? KalmanFilter.GAIN_TOLERANCE / 2 : KalmanFilter.GAIN_TOLERANCE;
+        boolean converged = true;
+        for (i = 0; i < stateDim; i += 1) {
+            for (j = 0; j < inputDim; j += 1) {
+                double change = Math.abs(K.get(i, j) - K_last.get(i, j));
+                if (change > tolerance * Math.abs(K.get(i, j))) {
+                    converged = false;
+                }
+            }
+        }
+
+        if (converged) {
+            refreshing = false;
+            converging = false;
+            predictions = 0;
+            K_last.setTo(K);
+            for (i = 0; i < inputDim; i += 1) {
+                baselineNis[i] = Math.max(1, recentNis[i]);
+            }
+        } else if (!converging || predictions >= covarianceInterval) {
+            // Compare with these gains after an interval at the full rate
+            converging = true;
+            predictions = 0;
+            K_last.setTo(K);
+        }
+    }
+
+    void checkDrift(int i, double nis) {
+        recentNis[i] += KalmanFilter.DRIFT_ALPHA * (nis - recentNis[i]);
+        if (!refreshing && recentNis[i] > driftThreshold * baselineNis[i]) {
+            startRefresh();
+        }
+    }
+
+    @Override
+    public int getStateDim() {
+        return stateDim;
+    }
+
+    @Override
+    public double getState(int i) {
+        return x.get(i, 0);
+    }
+
+    @Override
+    public void setState(int i, double value) {
+        x.set(i, 0, (float) value);
+    }
+
+    @Override
+    public double getVariance(int i) {
+        return P.get(i, i);
+    }
+
+    @Override
+    public int getState(double[] dst) {
+        int i;
+
+        for (i = 0; i < stateDim; i += 1) {
+            dst[i] = x.data[i];
+        }
+
+        return stateDim;
+    }
+
+    public int setState(double[] src) {
+        int i;
+
+        for (i = 0; i < stateDim; i += 1) {
+            x.data[i] = (float) src[i];
+        }
+
+        return stateDim;
+    }
+
+    @Override
+    public int setPeriod(double dt) {
+        setIdentity(F);
+        startRefresh();
+
+        if (stateDim == 2) {
+            F.set(0, 1, (float) dt);
+        }
+
+        if (stateDim == 3) {
+            F.set(0, 1, (float) dt);
+            F.set(0, 2, (float) (dt * dt * 0.5));
+            F.set(1, 2, (float) dt);
+        }
+
+        //  Acceleration as control input
+        if (stateDim == 2 && controlDim == 1) {
+            B.set(0, 0, (float) (dt * dt * 0.5));
+            B.set(1, 0, (float) dt);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public int setProcessNoise(double dt, double var) {
+
+        // Using discrete noise model, scaled in double precision
+
+        startRefresh();
+
+        if (stateDim == 2) {
+            Q.set(0, 0, (float) (var * 0.25 * dt * dt * dt * dt));
+            Q.set(0, 1, (float) (var * 0.50 * dt * dt * dt));
+            Q.set(1, 0, (float) (var * 0.50 * dt * dt * dt));
+            Q.set(1, 1, (float) (var * dt * dt));
+        }
+
+        if (stateDim == 3) {
+            Q.set(0, 0, (float) (var * 0.25 * dt * dt * dt * dt));
+            Q.set(0, 1, (float) (var * 0.50 * dt * dt * dt));
+            Q.set(0, 2, (float) (var * 0.50 * dt * dt));
+            Q.set(1, 0, (float) (var * 0.50 * dt * dt * dt));
+            Q.set(1, 1, (float) (var * dt * dt));
+            Q.set(1, 2, (float) (var * dt));
+            Q.set(2, 0, (float) (var * 0.50 * dt * dt));
+            Q.set(2, 1, (float) (var * dt));
+            Q.set(2, 2, (float) var);
+        }
+
+        return 0;
+    }
+
+    @Override
+    public int initCovariance(double[] std) {
+        double sigma;
+        int i;
+
+        setIdentity(P);
+        for (i = 0; i < stateDim; i += 1) {
+            sigma = std[i];
+            P.set(i, i, (float) (sigma * sigma));
+        }
+        startRefresh();
+
+        return stateDim;
+    }
+
+    @Override
+    public int setMeasurementError(double[] std) {
+        int i;
+        double sigma;
+
+        assert(std.length == inputDim);
+
+        R.zero();
+        for (i = 0; i < inputDim; i += 1) {
+            sigma = std[i];
+            R.set(i, i, (float) (sigma * sigma));
+        }
+
+        return inputDim;
+    }
+
+    @Override
+    public void setObservation(int i, int j, double value) {
+        H.set(i, j, (float) value);
+        startRefresh();
+    }
+
+    @Override
+    public int filterPredict(double[] control) {
+        int i;
+
+        //  Prior Mean
+        //  x⁻ = Fx + Bu
+
+        mult(F, x, x_prior);
+        if (control != null) {
+            assert (control.length == controlDim);
+            for (i = 0; i < controlDim; i += 1) {
+                u.data[i] = (float) control[i];
+            }
+            multAdd(B, u, x_prior);
+        }
+        x.setTo(x_prior);
+
+        predictions += 1;
+        if (!refreshing) {
+            if (predictions < covarianceInterval) {
+                return stateDim;
+            }
+            startRefresh();
+        }
+
+        //  Prior Covariance
+        //  P⁻ = FPF⸆ + Q
+
+        mult(F, P, tmp_ss);
+        multTransB(tmp_ss, F, P_prior);
+        addEquals(P_prior, Q);
+        P.setTo(P_prior);
+
+        return stateDim;
+    }
+
+    @Override
+    public int filterUpdate(double[] input) {
+        int i;
+
+        assert (input.length == inputDim);
+        for (i = 0; i < inputDim; i += 1) {
+            z.data[i] = (float) input[i];
+        }
+
+        //  Residual
+        //  y = z - Hx⁻
+
+        mult(H, x, y);
+        subtract(z, y, y);
+
+        if (!refreshing) {
+            //  x = x⁻ + Ky with the cached gain
+            multAdd(K, y, x);
+
+            if (statistics != null) {
+                statistics.beginUpdate();
+            }
+            for (i = 0; i < inputDim; i += 1) {
+                double y_i = y.get(i, 0);
+                double nis = y_i * y_i * cachedSInv[i];
+                if (statistics != null) {
+                    statistics.add(i, y_i, nis);
+                }
+                checkDrift(i, nis);
+            }
+            if (statistics != null) {
+                statistics.endUpdate();
+            }
+
+            return inputDim;
+        }
+
+        //  System uncertainty
+        //  S = HP⁻H⸆ + R
+
+        S.setTo(R);
+        multTransB(P, H, PHT);
+        multAdd(H, PHT, S);
+
+        //  Kalman gain
+        //  K = P⁻H⸆S⁻¹
+
+        if (!solver.setA(S)) return 0;
+        solver.invert(S_inv);
+        mult(PHT, S_inv, K);
+
+        if (statistics != null) {
+            statistics.beginUpdate();
+        }
+        for (i = 0; i < inputDim; i += 1) {
+            double y_i = y.get(i, 0);
+            double nis = y_i * y_i / S.get(i, i);
+            if (statistics != null) {
+                statistics.add(i, y_i, nis);
+            }
+            cachedSInv[i] = 1.0f / S.get(i, i);
+            recentNis[i] += KalmanFilter.DRIFT_ALPHA * (nis - recentNis[i]);
+        }
+        if (statistics != null) {
+            statistics.endUpdate();
+        }
+
+        //  State Update
+        //  x = x⁻ + Ky
+
+        multAdd(K, y, x);
+
+        //  Covariance Update
+        //  P = (I-KH)P⁻(I-KH)⸆ + KRK⸆
+
+        setIdentity(IMKH);
+        mult(K, H, KH);
+        subtractEquals(IMKH, KH);
+        mult(IMKH, P, tmp_ss);
+        multTransB(tmp_ss, IMKH, P);
+        mult(K, R, tmp_si);
+        multTransB(tmp_si, K, tmp_ss);
+        addEquals(P, tmp_ss);
+
+        refreshed((1 << inputDim) - 1);
+
+        return inputDim;
+    }
+
+    @Override
+    public int filterUpdateSequential(int i, double z_i) {
+        assert (i < inputDim);
+        z.set(i, 0, (float) z_i);
+        extractRow(H, i, H_seq);
+        float R_ii = R.get(i, i);
+        int j;
+
+        //  Residual
+        //  yᵢ = zᵢ - Hᵢx⁻
+
+        mult(H_seq, x, tmp_11);
+        float y_i = (float) z_i - tmp_11.get(0, 0);
+        y.set(i, 0, y_i);
+
+        if (!refreshing && (cachedInputs & (1 << i)) != 0) {
+            //  x = x⁻ + Kᵢyᵢ with the cached gain of input #i
+            for (j = 0; j < stateDim; j += 1) {
+                x.data[j] += K.get(j, i) * y_i;
+            }
+
+            double nis = (double) y_i * y_i * cachedSInv[i];
+            if (statistics != null) {
+                statistics.update(i, y_i, nis);
+            }
+            checkDrift(i, nis);
+
+            return inputDim;
+        }
+
+        //  System uncertainty
+        //  Sᵢ = HᵢP⁻Hᵢ⸆ + Rᵢ
+        //  In sequential processing, Sᵢ is a scalar
+
+        multTransB(P, H_seq, PHT_seq);
+        mult(H_seq, PHT_seq, tmp_11);
+        float S_i = tmp_11.get(0, 0) + R_ii;
+        if (S_i == 0)
+            return 0;
+
+        //  Kalman gain
+        //  Kᵢ = P⁻Hᵢ⸆S⁻¹
+
+        s_inv = 1.0f / S_i;
+        scale(s_inv, PHT_seq, K_seq);
+
+        if (statistics != null) {
+            statistics.update(i, y_i, (double) y_i * y_i * s_inv);
+        }
+        cachedSInv[i] = s_inv;
+        recentNis[i] += KalmanFilter.DRIFT_ALPHA * ((double) y_i * y_i * s_inv - recentNis[i]);
+
+        // Store the Kalman gain for input #i
+        for (j = 0; j < stateDim; j += 1) {
+            K.set(j, i, K_seq.get(j, 0));
+        }
+
+        //  State Update
+        //  x = x⁻ + Kᵢyᵢ
+
+        tmp_11.set(0, 0, y_i);
+        multAdd(K_seq, tmp_11, x);
+
+        //  Covariance Update
+        //  P = (I-KᵢHᵢ)P⁻(I-KᵢHᵢ)⸆ + KᵢRᵢKᵢ⸆
+
+        setIdentity(IMKH);
+        mult(K_seq, H_seq, KH);
+        subtractEquals(IMKH, KH);
+        mult(IMKH, P, tmp_ss);
+        multTransB(tmp_ss, IMKH, P);
+        multAddTransB(R_ii, K_seq, K_seq, P);
+
+        refreshed(1 << i);
+
+        return inputDim;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+/**
+ * Single precision version of StateHistory
+ */
+class FloatStateHistory {
+    final int stateDim;
+    final int capacity;
+
+    /** Vector of step n at (n % capacity) · stateDim */
+    final float[] data;
+
+    /** Sample time of the step in each slot */
+    final long[] time;
+
+    /** Slot of the next step */
+    int head = 0;
+    /** Number of steps available */
+    int count = 0;
+
+    FloatStateHistory(int stateDim, int capacity) {
+        this.stateDim = stateDim;
+        this.capacity = capacity;
+        data = new float[stateDim * capacity];
+        time = new long[capacity];
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * Append a state, replacing the oldest one when full
+     */
+    void add(float[] x, long t) {
+        System.arraycopy(x, 0, data, head * stateDim, stateDim);
+        time[head] = t;
+
+        head += 1;
+        if (head == capacity) {
+            head = 0;
+        }
+
+        if (count < capacity) {
+            count += 1;
+        }
+    }
+
+    /**
+     * @param age Number of steps before the newest state
+     * @return Offset of the state in data
+     */
+    int offset(int age) {
+        int t = head - 1 - age;
+
+        if (t < 0) {
+            t += capacity;
+        }
+
+        return t * stateDim;
+    }
+}
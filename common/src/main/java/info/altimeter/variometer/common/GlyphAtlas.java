@@ -0,0 +1,84 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Align;
+import android.graphics.Paint.FontMetrics;
+import android.graphics.Typeface;
+import android.util.LruCache;
+
+/**
+ * Vertical tape of digit glyphs for drum counters: cells 0 to 9, then 0 again,
+ * so that a drum between 9 and 10 is one continuous window, then a minus sign.
+ * Atlases are built once per cell height and color, and shared by all views.
+ * Like DialCache, the cache drops the least recently used atlases beyond its size limit,
+ * so that size and density changes do not accumulate bitmaps.
+ */
+class GlyphAtlas {
+    static final int CELL_ZERO = 10;
+    static final int CELL_MINUS = 11;
+    static final int CELLS = 12;
+
+    /** A 200 px cell takes about 1 MB, enough for the counters of a few layouts */
+    static final int MAX_BYTES = 4 << 20;
+
+    static final LruCache<Long, GlyphAtlas> cache = new LruCache<Long, GlyphAtlas>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(Long key, GlyphAtlas value) {
+            return value.bitmap.getByteCount();
+        }
+    };
+
+    final Bitmap bitmap;
+    final int cellWidth;
+    final int cellHeight;
+
+    static synchronized GlyphAtlas get(int cellHeight, int color) {
+        long key = ((long) cellHeight << 32) | (color & 0xffffffffL);
+        GlyphAtlas atlas = cache.get(key);
+
+        if (atlas == null) {
+            atlas = new GlyphAtlas(cellHeight, color);
+            cache.put(key, atlas);
+        }
+
+        return atlas;
+    }
+
+    private GlyphAtlas(int height, int color) {
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        FontMetrics metrics = new FontMetrics();
+        String digits = "0123456789";
+        Canvas canvas;
+        float baseline;
+        int i;
+
+        paint.setTypeface(Typeface.MONOSPACE);
+        paint.setTextAlign(Align.CENTER);
+        paint.setColor(color);
+
+        // Scale the font so that one line fits the cell
+        paint.setTextSize(height);
+        paint.getFontMetrics(metrics);
+        paint.setTextSize(height * height / (metrics.descent - metrics.ascent));
+        paint.getFontMetrics(metrics);
+
+        cellHeight = height;
+        cellWidth = (int) Math.ceil(paint.measureText(digits, 0, 1));
+        baseline = -metrics.ascent;
+
+        bitmap = Bitmap.createBitmap(cellWidth, cellHeight * CELLS, Bitmap.Config.ARGB_8888);
+        canvas = new Canvas(bitmap);
+        for (i = 0; i < 10; i += 1) {
+            canvas.drawText(digits, i, i + 1, cellWidth / 2f, i * cellHeight + baseline, paint);
+        }
+        canvas.drawText(digits, 0, 1, cellWidth / 2f, CELL_ZERO * cellHeight + baseline, paint);
+        canvas.drawText("-", cellWidth / 2f, CELL_MINUS * cellHeight + baseline, paint);
+    }
+}
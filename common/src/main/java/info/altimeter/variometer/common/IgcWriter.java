@@ -0,0 +1,255 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flight track in IGC format: pressure altitude and vertical speed, without position.
+ *
+ * B records have no fix (validity V, zero coordinates), pressure altitude in bytes 26-30
+ * and vertical speed in the VAT extension, bytes 36-39, signed, in 0.1 m/s.
+ * Subscribe it to a Variometer at the rate of one update per record interval.
+ *
+ * Records are formatted on the sensor thread into preallocated lines and passed to a writer thread,
+ * which collects them in a large buffer and writes and forces it to storage periodically.
+ * The sensor thread never waits: when the writer falls behind, records are dropped and counted.
+ * An existing file is appended to, so a restarted service continues the same flight.
+ */
+public class IgcWriter implements Variometer.StateListener, Closeable {
+    static final int RECORD_LENGTH = 41;
+    static final int QUEUE_SIZE = 64;
+    static final int BUFFER_SIZE = 65536;
+
+    final File file;
+    final FileChannel channel;
+    final ArrayBlockingQueue<byte[]> free = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    final ArrayBlockingQueue<byte[]> filled = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    final Thread thread;
+
+    /** Added to sensor timestamps to get UTC, ns since 1970 */
+    final long clockOffset;
+
+    /** Write to storage at least this often, ms */
+    long forceInterval = 10000;
+
+    volatile boolean running = true;
+    volatile IOException error = null;
+    long droppedRecords = 0;
+
+    /**
+     * @param clockOffset UTC time minus sensor event time, ns
+     */
+    public IgcWriter(File file, long clockOffset) throws IOException {
+        int i;
+
+        this.file = file;
+        this.clockOffset = clockOffset;
+        channel = new FileOutputStream(file, true).getChannel();
+
+        try {
+            if (channel.size() == 0) {
+                writeHeader();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        for (i = 0; i < QUEUE_SIZE; i += 1) {
+            free.add(new byte[RECORD_LENGTH]);
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "IGC Writer");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    void writeHeader() throws IOException {
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        utc.setTimeInMillis(System.currentTimeMillis());
+
+        String header = String.format(Locale.US,
+                "AXXXVARIO\r\n"
+                + "HFDTEDATE:%02d%02d%02d,01\r\n"
+                + "HFFTYFRTYPE:Variometer\r\n"
+                + "HFPRSPRESSALTSENSOR:Android barometer\r\n"
+                + "I013639VAT\r\n",
+                utc.get(Calendar.DAY_OF_MONTH), utc.get(Calendar.MONTH) + 1, utc.get(Calendar.YEAR) % 100);
+
+        ByteBuffer b = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setForceInterval(long ms) {
+        forceInterval = ms;
+    }
+
+    /**
+     * @return Number of records dropped because the writer thread fell behind
+     */
+    public long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    /*
+     *  Zero-padded decimal number, with a leading minus sign if negative
+     */
+    static void putDecimal(byte[] r, int off, int width, long value) {
+        int i;
+
+        if (value < 0) {
+            r[off] = '-';
+            off += 1;
+            width -= 1;
+            value = -value;
+        }
+
+        for (i = off + width - 1; i >= off; i -= 1) {
+            r[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    static void putAscii(byte[] r, int off, String s) {
+        int i;
+
+        for (i = 0; i < s.length(); i += 1) {
+            r[off + i] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Format a B record
+     * @param utc UTC time, ns since 1970
+     * @param altitude Pressure altitude, m
+     * @param vario Vertical speed, m/s
+     */
+    static void formatRecord(byte[] r, long utc, double altitude, double vario) {
+        long s = utc / 1000000000L % 86400L;
+
+        if (s < 0) {
+            s += 86400L;
+        }
+
+        r[0] = 'B';
+        putDecimal(r, 1, 2, s / 3600);
+        putDecimal(r, 3, 2, s / 60 % 60);
+        putDecimal(r, 5, 2, s % 60);
+        putAscii(r, 7, "0000000N00000000EV");
+        putDecimal(r, 25, 5, Math.max(-9999, Math.min(99999, Math.round(altitude))));
+        putAscii(r, 30, "00000");
+        putDecimal(r, 35, 4, Math.max(-999, Math.min(9999, Math.round(vario * 10))));
+        r[39] = '\r';
+        r[40] = '\n';
+    }
+
+    @Override
+    public void onStateUpdate(Variometer.StateUpdate u) {
+        double altitude = u.x[0];
+        byte[] r;
+
+        if (!Double.isNaN(u.pressure)) {
+            altitude = NmeaOutput.pressureAltitude(u.pressure);
+        }
+
+        if (Double.isNaN(altitude) || Double.isNaN(u.x[1])) {
+            return;
+        }
+
+        r = free.poll();
+        if (r == null) {
+            droppedRecords += 1;
+            return;
+        }
+
+        formatRecord(r, u.timestamp + clockOffset, altitude, u.x[1]);
+        filled.offer(r);
+    }
+
+    void writeLoop() {
+        long lastForce = System.currentTimeMillis();
+        byte[] r;
+
+        try {
+            while (running || !filled.isEmpty()) {
+                r = filled.poll(100, TimeUnit.MILLISECONDS);
+                if (r != null) {
+                    if (buffer.remaining() < r.length) {
+                        flush(false);
+                    }
+                    buffer.put(r);
+                    free.offer(r);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastForce >= forceInterval) {
+                    flush(true);
+                    lastForce = now;
+                }
+            }
+            flush(true);
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            error = new IOException("Interrupted", e);
+        }
+    }
+
+    void flush(boolean force) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Write the remaining records and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
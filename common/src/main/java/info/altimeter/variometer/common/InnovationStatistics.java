@@ -0,0 +1,177 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running innovation statistics of a Kalman filter, per measurement input.
+ *
+ * Normalized innovation squared (NIS) of input i is yᵢ² / Sᵢᵢ, which has expected value 1
+ * for a correctly tuned filter. A mean NIS well above 1 means the filter is overconfident
+ * (noise values too small or the filter diverges), well below 1 means it is too pessimistic.
+ *
+ * Updates come from the filter thread only and do not allocate.
+ * Snapshots can be taken from any thread, a sequence counter makes them consistent.
+ * The sums are atomic arrays of raw double bits, ordered with the counter without fences.
+ */
+public class InnovationStatistics {
+    final int inputDim;
+
+    /** Odd while an update is in progress */
+    private volatile int sequence = 0;
+    private volatile boolean resetRequested = false;
+
+    /** Weight of the new sample in the exponential NIS average */
+    double alpha = 0.01;
+
+    final AtomicLongArray count;
+    final AtomicLongArray sumY;
+    final AtomicLongArray sumYY;
+    final AtomicLongArray sumNis;
+    final AtomicLongArray recentNis;
+    final AtomicLongArray maxNis;
+
+    public static class Snapshot {
+        public long[] count;
+        public double[] meanResidual;
+        public double[] residualVariance;
+        public double[] meanNis;
+        /** Exponential moving average of NIS, follows recent filter behavior */
+        public double[] recentNis;
+        public double[] maxNis;
+
+        Snapshot(int n) {
+            count = new long[n];
+            meanResidual = new double[n];
+            residualVariance = new double[n];
+            meanNis = new double[n];
+            recentNis = new double[n];
+            maxNis = new double[n];
+        }
+    }
+
+    public InnovationStatistics(int inputs) {
+        inputDim = inputs;
+        count = new AtomicLongArray(inputs);
+        sumY = new AtomicLongArray(inputs);
+        sumYY = new AtomicLongArray(inputs);
+        sumNis = new AtomicLongArray(inputs);
+        recentNis = new AtomicLongArray(inputs);
+        maxNis = new AtomicLongArray(inputs);
+    }
+
+    private static double get(AtomicLongArray a, int i) {
+        return Double.longBitsToDouble(a.get(i));
+    }
+
+    private static void set(AtomicLongArray a, int i, double x) {
+        a.set(i, Double.doubleToRawLongBits(x));
+    }
+
+    /**
+     * @param a Weight of the new sample in the moving NIS average, 0 &lt; a ≤ 1
+     */
+    public void setAveragingWeight(double a) {
+        alpha = a;
+    }
+
+    /**
+     * Clear all sums, the filter thread does it on the next update
+     */
+    public void reset() {
+        resetRequested = true;
+    }
+
+    void clear() {
+        int i;
+
+        for (i = 0; i < inputDim; i += 1) {
+            count.set(i, 0);
+            set(sumY, i, 0);
+            set(sumYY, i, 0);
+            set(sumNis, i, 0);
+            set(recentNis, i, 0);
+            set(maxNis, i, 0);
+        }
+        resetRequested = false;
+    }
+
+    void beginUpdate() {
+        sequence += 1;
+        if (resetRequested) {
+            clear();
+        }
+    }
+
+    void endUpdate() {
+        sequence += 1;
+    }
+
+    void add(int i, double y, double nis) {
+        // Only the filter thread writes, plain read-modify-write is enough
+        double recent = get(recentNis, i);
+        long n = count.get(i);
+
+        if (n == 0) {
+            recent = nis;
+        } else {
+            recent += alpha * (nis - recent);
+        }
+        set(recentNis, i, recent);
+        count.set(i, n + 1);
+        set(sumY, i, get(sumY, i) + y);
+        set(sumYY, i, get(sumYY, i) + y * y);
+        set(sumNis, i, get(sumNis, i) + nis);
+        if (nis > get(maxNis, i)) {
+            set(maxNis, i, nis);
+        }
+    }
+
+    void update(int i, double y, double nis) {
+        beginUpdate();
+        add(i, y, nis);
+        endUpdate();
+    }
+
+    public int getInputDim() {
+        return inputDim;
+    }
+
+    public Snapshot newSnapshot() {
+        return new Snapshot(inputDim);
+    }
+
+    /**
+     * Copy consistent statistics into an existing snapshot
+     */
+    public void snapshot(Snapshot s) {
+        int seq, i;
+        long n;
+
+        do {
+            while (((seq = sequence) & 1) != 0) {
+                Thread.yield();
+            }
+
+            for (i = 0; i < inputDim; i += 1) {
+                n = count.get(i);
+                s.count[i] = n;
+                s.recentNis[i] = get(recentNis, i);
+                s.maxNis[i] = get(maxNis, i);
+                if (n > 0) {
+                    s.meanResidual[i] = get(sumY, i) / n;
+                    s.residualVariance[i] = get(sumYY, i) / n - s.meanResidual[i] * s.meanResidual[i];
+                    s.meanNis[i] = get(sumNis, i) / n;
+                } else {
+                    s.meanResidual[i] = 0;
+                    s.residualVariance[i] = 0;
+                    s.meanNis[i] = 0;
+                }
+            }
+        } while (seq != sequence);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.factory.LinearSolverFactory_DDRM;
+import org.ejml.interfaces.linsol.LinearSolverDense;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.ejml.dense.row.CommonOps_DDRM.mult;
+import static org.ejml.dense.row.CommonOps_DDRM.multTransA;
+
+/**
+ * Fixed-interval (Rauch-Tung-Striebel) smoother for recorded flights: a forward Kalman filter
+ * pass over the whole log, then a backward pass that corrects every step with all later samples.
+ *
+ * A long log can be split into chunks smoothed in parallel. Each chunk is extended by an overlap
+ * on both sides, so that its filter converges before the chunk starts and its backward pass
+ * before the chunk ends; adjacent chunks are blended across the middle of the overlap.
+ * The difference from the serial result decays with the length of the overlap.
+ */
+public class IntervalSmoother {
+
+    public interface Model {
+        /**
+         * Called once per chunk, from any thread
+         * @return A filter with its period, noise and measurement errors set,
+         * and a covariance wide enough to start anywhere in the log
+         */
+        KalmanFilter newFilter();
+    }
+
+    final Model model;
+    final int stateDim;
+    final int inputDim;
+
+    /** Steps per chunk */
+    int chunkLength = 30000;
+    /** Steps added on each side of a chunk */
+    int overlap = 3000;
+
+    public IntervalSmoother(Model model) {
+        KalmanFilter f = model.newFilter();
+
+        this.model = model;
+        stateDim = f.stateDim;
+        inputDim = f.inputDim;
+    }
+
+    /**
+     * @param length Steps per chunk, not less than the overlap
+     * @param overlap Steps added on each side of a chunk to let its passes converge
+     */
+    public void setChunks(int length, int overlap) {
+        assert (length > 0 && overlap >= 0 && overlap <= length);
+        chunkLength = length;
+        this.overlap = overlap;
+    }
+
+    /**
+     * Smooth the whole log in one pass, on the calling thread
+     * @param z Measurements, inputDim per filter step, NaN where an input has no sample
+     * @param xs Smoothed states, stateDim per filter step
+     */
+    public void smooth(double[] z, double[] xs) {
+        smooth(z, 0, z.length / inputDim, xs);
+    }
+
+    /**
+     * Smooth the log in chunks, in parallel on the pool
+     * @param z Measurements, inputDim per filter step, NaN where an input has no sample
+     * @param xs Smoothed states, stateDim per filter step
+     */
+    public void smooth(double[] z, double[] xs, ForkJoinPool pool) {
+        int n = z.length / inputDim;
+        int chunks = (n + chunkLength - 1) / chunkLength;
+
+        if (chunks < 2) {
+            smooth(z, xs);
+            return;
+        }
+
+        double[][] windows = new double[chunks][];
+        pool.invoke(new ChunkTask(z, n, windows, 0, chunks));
+        stitch(n, windows, xs);
+    }
+
+    /*
+     *  Steps [windowStart(j), windowEnd(j)) of the log are smoothed for chunk #j
+     */
+    int windowStart(int j) {
+        return Math.max(0, j * chunkLength - overlap);
+    }
+
+    int windowEnd(int j, int n) {
+        return Math.min(n, (j + 1) * chunkLength + overlap);
+    }
+
+    class ChunkTask extends RecursiveAction {
+        final double[] z;
+        final int n;
+        final double[][] windows;
+        final int from;
+        final int to;
+
+        ChunkTask(double[] z, int n, double[][] windows, int from, int to) {
+            this.z = z;
+            this.n = n;
+            this.windows = windows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask(z, n, windows, from, mid), new ChunkTask(z, n, windows, mid, to));
+                return;
+            }
+
+            int start = windowStart(from);
+            int end = windowEnd(from, n);
+            windows[from] = new double[(end - start) * stateDim];
+            smooth(z, start, end, windows[from]);
+        }
+    }
+
+    /*
+     *  Take each step from the window of its chunk, and blend the two windows
+     *  linearly within half the overlap of a chunk boundary
+     */
+    void stitch(int n, double[][] windows, double[] xs) {
+        int half = overlap / 2;
+        int i, j, t;
+
+        for (j = 0; j < windows.length; j += 1) {
+            int b = j * chunkLength;
+            int from = j > 0 ? b + half : 0;
+            int to = j < windows.length - 1 ? (j + 1) * chunkLength - half : n;
+            int start = windowStart(j);
+
+            if (to > from) {
+                System.arraycopy(windows[j], (from - start) * stateDim, xs, from * stateDim, (to - from) * stateDim);
+            }
+
+            if (j == 0) {
+                continue;
+            }
+
+            int prevStart = windowStart(j - 1);
+            int blendEnd = Math.min(n, b + half);
+            for (t = b - half; t < blendEnd; t += 1) {
+                double w = (t - (b - half) + 0.5) / (2 * half);
+                int a = (t - prevStart) * stateDim;
+                int c = (t - start) * stateDim;
+                for (i = 0; i < stateDim; i += 1) {
+                    xs[t * stateDim + i] = (1 - w) * windows[j - 1][a + i] + w * windows[j][c + i];
+                }
+            }
+        }
+    }
+
+    /*
+     *  Forward and backward passes over steps [start, end) of the log,
+     *  smoothed states written to out from offset 0
+     */
+    void smooth(double[] z, int start, int end, double[] out) {
+        KalmanFilter f = model.newFilter();
+        int m = end - start;
+        int ss = stateDim * stateDim;
+        int i, k;
+
+        // Priors of every step and posterior covariances for the backward pass,
+        // posterior states go straight to the output and are corrected in place
+        double[] xPrior = new double[m * stateDim];
+        double[] pPrior = new double[m * ss];
+        double[] pPost = new double[m * ss];
+
+        for (k = 0; k < m; k += 1) {
+            f.filterPredict(null);
+            System.arraycopy(f.x.data, 0, xPrior, k * stateDim, stateDim);
+            System.arraycopy(f.P.data, 0, pPrior, k * ss, ss);
+
+            for (i = 0; i < inputDim; i += 1) {
+                double z_i = z[(start + k) * inputDim + i];
+                if (!Double.isNaN(z_i)) {
+                    f.filterUpdateSequential(i, z_i);
+                }
+            }
+
+            System.arraycopy(f.x.data, 0, out, k * stateDim, stateDim);
+            System.arraycopy(f.P.data, 0, pPost, k * ss, ss);
+        }
+
+        LinearSolverDense<DMatrixRMaj> solver = LinearSolverFactory_DDRM.symmPosDef(stateDim);
+        Matrix P = new Matrix(stateDim, stateDim);
+        Matrix P_prior = new Matrix(stateDim, stateDim);
+        Matrix FP = new Matrix(stateDim, stateDim);
+        Matrix CT = new Matrix(stateDim, stateDim);
+        Matrix d = new Matrix(stateDim, 1);
+        Matrix dx = new Matrix(stateDim, 1);
+
+        //  Cₖ = PₖF⸆(P⁻ₖ₊₁)⁻¹
+        //  xˢₖ = xₖ + Cₖ(xˢₖ₊₁ - x⁻ₖ₊₁)
+
+        for (k = m - 2; k >= 0; k -= 1) {
+            System.arraycopy(pPost, k * ss, P.data, 0, ss);
+            System.arraycopy(pPrior, (k + 1) * ss, P_prior.data, 0, ss);
+
+            //  Cₖ⸆ = (P⁻ₖ₊₁)⁻¹FPₖ, both covariances are symmetric
+            mult(f.F, P, FP);
+            if (!solver.setA(P_prior)) {
+                continue;
+            }
+            solver.solve(FP, CT);
+
+            for (i = 0; i < stateDim; i += 1) {
+                d.data[i] = out[(k + 1) * stateDim + i] - xPrior[(k + 1) * stateDim + i];
+            }
+            multTransA(CT, d, dx);
+            for (i = 0; i < stateDim; i += 1) {
+                out[k * stateDim + i] += dx.data[i];
+            }
+        }
+    }
+}
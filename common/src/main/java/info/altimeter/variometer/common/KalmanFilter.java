@@ -23,7 +23,7 @@ import static org.ejml.dense.row.CommonOps_DDRM.subtract;
 import static org.ejml.dense.row.CommonOps_DDRM.subtractEquals;
 import static org.ejml.dense.row.CommonOps_DDRM.transpose;
 
-public class KalmanFilter {
+public class KalmanFilter implements StateEstimator {
     /** State vector dimension */
     int stateDim;
 
@@ -89,6 +89,38 @@ public class KalmanFilter {
     Matrix tmp_11, tmp_s1;
     Matrix tmp_ss, tmp_si, tmp_is;
 
+    /** Optional innovation statistics, null when disabled */
+    InnovationStatistics statistics = null;
+
+    /*
+     *  Split rates: between refreshes, the state is updated with cached gains
+     *  and the covariance is left as it was at the end of the last refresh.
+     *  A refresh lasts two cycles of updates of every input; if the gains have changed,
+     *  the filter runs at the full rate until they are stable over an interval.
+     */
+    static final double GAIN_TOLERANCE = 0.01;
+    static final double DRIFT_ALPHA = 0.05;
+
+    int covarianceInterval = 1;
+    /** Increase of the mean normalized innovation of an input that starts a refresh early */
+    double driftThreshold = 4;
+    boolean refreshing = true;
+    /** Running at the full rate until the gains are stable over an interval */
+    boolean converging = false;
+    int predictions = 0;
+    /** Bit masks of inputs with a cached gain, and of inputs updated in the current refresh */
+    int cachedInputs = 0;
+    int refreshedInputs = 0;
+    /** Cycles of updates of every input in the current refresh */
+    int refreshCycles = 0;
+    /** Gains at the end of the previous refresh, or at the start of the interval */
+    Matrix K_last;
+    /** Inverse innovation variance and recent mean normalized innovation of each input */
+    double[] cachedSInv;
+    double[] recentNis;
+    /** Mean normalized innovation when the gains were cached, at least 1 */
+    double[] baselineNis;
+
     private LinearSolverDense<DMatrixRMaj> solver;
 
     public KalmanFilter(int state, int input, int ctrls) {
@@ -121,7 +153,7 @@ public class KalmanFilter {
         P_prior = new Matrix(stateDim, stateDim);
         y = new Matrix(inputDim, 1);
         if (controlDim > 0) {
-            B = new Matrix(controlDim, stateDim);
+            B = new Matrix(stateDim, controlDim);
         }
         H = new Matrix(inputDim, stateDim);
         H.set(0, 0, 1.0);
@@ -133,10 +165,126 @@ public class KalmanFilter {
         S = new Matrix(inputDim, inputDim);
         F = new Matrix(stateDim, stateDim);
         Q = new Matrix(stateDim, stateDim);
+        K_last = new Matrix(stateDim, inputDim);
+        cachedSInv = new double[inputDim];
+        recentNis = new double[inputDim];
+        baselineNis = new double[inputDim];
 
         solver = LinearSolverFactory_DDRM.symmPosDef(stateDim);
     }
 
+    /**
+     * Enable (or disable with null) accumulation of innovation statistics
+     */
+    public void setStatistics(InnovationStatistics stats) {
+        assert (stats == null || stats.getInputDim() == inputDim);
+        statistics = stats;
+    }
+
+    public InnovationStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public void setCovarianceInterval(int interval) {
+        covarianceInterval = Math.max(1, interval);
+        startRefresh();
+    }
+
+    /**
+     * @param threshold Increase of the mean normalized innovation squared since the gains were cached
+     *                  that starts a refresh
+     */
+    public void setDriftThreshold(double threshold) {
+        driftThreshold = threshold;
+    }
+
+    void startRefresh() {
+        refreshing = true;
+        predictions = 0;
+        refreshedInputs = 0;
+        refreshCycles = 0;
+    }
+
+    /*
+     *  Called after the gains of the inputs have been computed
+     */
+    void refreshed(int inputs) {
+        int i, j;
+
+        cachedInputs |= inputs;
+        refreshedInputs |= inputs;
+
+        if (covarianceInterval == 1 || refreshedInputs != cachedInputs) {
+            return;
+        }
+        refreshedInputs = 0;
+
+        // The first cycle starts from the covariance of another phase of the inputs
+        refreshCycles += 1;
+        if (refreshCycles < 2) {
+            return;
+        }
+
+        // Cache gains that have not changed since the last refresh, or over the last interval
+        // at the full rate, with a tighter tolerance as the gains may converge slowly
+        double tolerance = converging ? GAIN_TOLERANCE / 2 : GAIN_TOLERANCE;
+        boolean converged = true;
+        for (i = 0; i < stateDim; i += 1) {
+            for (j = 0; j < inputDim; j += 1) {
+                double change = Math.abs(K.get(i, j) - K_last.get(i, j));
+                if (change > tolerance * Math.abs(K.get(i, j))) {
+                    converged = false;
+                }
+            }
+        }
+
+        if (converged) {
+            refreshing = false;
+            converging = false;
+            predictions = 0;
+            K_last.setTo(K);
+            for (i = 0; i < inputDim; i += 1) {
+                baselineNis[i] = Math.max(1, recentNis[i]);
+            }
+        } else if (!converging || predictions >= covarianceInterval) {
+            // Compare with these gains after an interval at the full rate
+            converging = true;
+            predictions = 0;
+            K_last.setTo(K);
+        }
+    }
+
+    /*
+     *  Track the normalized innovation of input i, refresh early if it drifts
+     */
+    void checkDrift(int i, double nis) {
+        recentNis[i] += DRIFT_ALPHA * (nis - recentNis[i]);
+        if (!refreshing && recentNis[i] > driftThreshold * baselineNis[i]) {
+            startRefresh();
+        }
+    }
+
+    @Override
+    public int getStateDim() {
+        return stateDim;
+    }
+
+    @Override
+    public double getState(int i) {
+        return x.get(i, 0);
+    }
+
+    @Override
+    public void setState(int i, double value) {
+        x.set(i, 0, value);
+    }
+
+    @Override
+    public double getVariance(int i) {
+        return P.get(i, i);
+    }
+
     public int getState(double[] dst) {
         System.arraycopy(x.data, 0, dst, 0, stateDim);
 
@@ -151,6 +299,7 @@ public class KalmanFilter {
 
     public int setPeriod(double dt) {
         setIdentity(F);
+        startRefresh();
 
         if (stateDim == 2) {
             F.set(0, 1, dt);
@@ -162,6 +311,12 @@ public class KalmanFilter {
             F.set(1, 2, dt);
         }
 
+        //  Acceleration as control input
+        if (stateDim == 2 && controlDim == 1) {
+            B.set(0, 0, dt * dt * 0.5);
+            B.set(1, 0, dt);
+        }
+
         return 0;
     }
 
@@ -169,6 +324,8 @@ public class KalmanFilter {
 
         // Using discrete noise model
 
+        startRefresh();
+
         if (stateDim == 2) {
             Q.set(0, 0, 0.25 * dt * dt * dt * dt);
             Q.set(0, 1, 0.50 * dt * dt * dt);
@@ -202,6 +359,7 @@ public class KalmanFilter {
             sigma = std[i];
             P.set(i, i, sigma * sigma);
         }
+        startRefresh();
 
         return stateDim;
     }
@@ -221,18 +379,32 @@ public class KalmanFilter {
         return inputDim;
     }
 
+    @Override
+    public void setObservation(int i, int j, double value) {
+        H.set(i, j, value);
+        startRefresh();
+    }
+
     public int filterPredict(double[] control) {
         //  Prior Mean
         //  x⁻ = Fx + Bu
 
         mult(F, x, x_prior);
         if (control != null) {
-            assert (control.length == stateDim);
+            assert (control.length == controlDim);
             System.arraycopy(control, 0, u.data, 0, controlDim);
             multAdd(B, u, x_prior);
         }
         x.setTo(x_prior);
 
+        predictions += 1;
+        if (!refreshing) {
+            if (predictions < covarianceInterval) {
+                return stateDim;
+            }
+            startRefresh();
+        }
+
         //  Prior Covariance
         //  P⁻ = FPF⸆ + Q
 
@@ -254,6 +426,28 @@ public class KalmanFilter {
         mult(H, x, y);
         subtract(z, y, y);
 
+        if (!refreshing) {
+            //  x = x⁻ + Ky with the cached gain
+            multAdd(K, y, x);
+
+            if (statistics != null) {
+                statistics.beginUpdate();
+            }
+            for (int i = 0; i < inputDim; i += 1) {
+                double y_i = y.get(i, 0);
+                double nis = y_i * y_i * cachedSInv[i];
+                if (statistics != null) {
+                    statistics.add(i, y_i, nis);
+                }
+                checkDrift(i, nis);
+            }
+            if (statistics != null) {
+                statistics.endUpdate();
+            }
+
+            return inputDim;
+        }
+
         //  System uncertainty
         //  S = HP⁻H⸆ + R
 
@@ -268,6 +462,22 @@ public class KalmanFilter {
         solver.invert(S_inv);
         mult(PHT, S_inv, K);
 
+        if (statistics != null) {
+            statistics.beginUpdate();
+        }
+        for (int i = 0; i < inputDim; i += 1) {
+            double y_i = y.get(i, 0);
+            double nis = y_i * y_i / S.get(i, i);
+            if (statistics != null) {
+                statistics.add(i, y_i, nis);
+            }
+            cachedSInv[i] = 1.0 / S.get(i, i);
+            recentNis[i] += DRIFT_ALPHA * (nis - recentNis[i]);
+        }
+        if (statistics != null) {
+            statistics.endUpdate();
+        }
+
         //  State Update
         //  x = x⁻ + Ky
 
@@ -285,6 +495,8 @@ public class KalmanFilter {
         multTransB(tmp_si, K, tmp_ss);
         addEquals(P, tmp_ss);
 
+        refreshed((1 << inputDim) - 1);
+
         return inputDim;
     }
 
@@ -302,6 +514,21 @@ public class KalmanFilter {
         double y_i = z_i - tmp_11.get(0, 0);
         y.set(i, 0, y_i);
 
+        if (!refreshing && (cachedInputs & (1 << i)) != 0) {
+            //  x = x⁻ + Kᵢyᵢ with the cached gain of input #i
+            for (j = 0; j < stateDim; j += 1) {
+                x.data[j] += K.get(j, i) * y_i;
+            }
+
+            double nis = y_i * y_i * cachedSInv[i];
+            if (statistics != null) {
+                statistics.update(i, y_i, nis);
+            }
+            checkDrift(i, nis);
+
+            return inputDim;
+        }
+
         //  System uncertainty
         //  Sᵢ = HᵢP⁻Hᵢ⸆ + Rᵢ
         //  In sequential processing, Sᵢ is a scalar
@@ -318,6 +545,12 @@ public class KalmanFilter {
         s_inv = 1.0 / S_i;
         scale(s_inv, PHT_seq, K_seq);
 
+        if (statistics != null) {
+            statistics.update(i, y_i, y_i * y_i * s_inv);
+        }
+        cachedSInv[i] = s_inv;
+        recentNis[i] += DRIFT_ALPHA * (y_i * y_i * s_inv - recentNis[i]);
+
         // Store the Kalman gain for input #i
         // The matrix made from Kᵢ columns will be different
         // from gain matrix K in non-sequential update.
@@ -341,6 +574,8 @@ public class KalmanFilter {
         multTransB(tmp_ss, IMKH, P);
         multAddTransB(R_ii, K_seq, K_seq, P);
 
+        refreshed(1 << i);
+
         return inputDim;
     }
 }
@@ -0,0 +1,137 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Histogram of time intervals in nanoseconds with logarithmic buckets:
+ * each power of 2 is split into 8 linear sub-buckets (12.5% resolution).
+ * Recording is a few shifts and one array increment, without allocation.
+ * A histogram must be written by one thread only.
+ */
+public class LatencyHistogram {
+    static final int SUB_BITS = 3;
+    static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /** Values up to 2⁴⁰ ns (about 18 minutes) */
+    static final int BUCKETS = (40 - SUB_BITS + 1) * SUB_COUNT;
+
+    final String name;
+    final long[] counts = new long[BUCKETS];
+    long count = 0;
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    long sum = 0;
+
+    public LatencyHistogram(String label) {
+        name = label;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int index = ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_COUNT - 1));
+
+        return index < BUCKETS ? index : BUCKETS - 1;
+    }
+
+    /**
+     * @return Lowest value that goes to the bucket
+     */
+    static long bucketValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+
+        int shift = (index >>> SUB_BITS) - 1;
+
+        return (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << shift;
+    }
+
+    public void record(long value) {
+        counts[bucketIndex(value)] += 1;
+        count += 1;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void reset() {
+        int i;
+
+        for (i = 0; i < BUCKETS; i += 1) {
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * @param fraction 0 to 1, e.g. 0.99 for the 99th percentile
+     * @return Upper bound of the bucket holding the requested fraction of samples, ns
+     */
+    public long getPercentile(double fraction) {
+        long target = (long) Math.ceil(fraction * count);
+        long n = 0;
+        int i;
+
+        if (count == 0) {
+            return 0;
+        }
+
+        for (i = 0; i < BUCKETS; i += 1) {
+            n += counts[i];
+            if (n >= target && n > 0) {
+                long upper = i + 1 < BUCKETS ? bucketValue(i + 1) - 1 : max;
+                return Math.min(upper, max);
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Write a summary line (values in µs) followed by non-empty buckets
+     */
+    public void dump(PrintWriter out) {
+        int i;
+
+        out.println(String.format(Locale.US,
+                "%s: count %d, mean %.1f, min %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f µs",
+                name, count, getMean() * 1e-3, (count > 0 ? min : 0) * 1e-3,
+                getPercentile(0.5) * 1e-3, getPercentile(0.9) * 1e-3,
+                getPercentile(0.99) * 1e-3, getPercentile(0.999) * 1e-3, max * 1e-3));
+
+        for (i = 0; i < BUCKETS; i += 1) {
+            if (counts[i] != 0) {
+                out.println(String.format(Locale.US, "  %d %d", bucketValue(i), counts[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms of the sensor-to-indicator pipeline stages.
+ * Every stage is recorded by one thread; a dump taken while running may be slightly inconsistent.
+ */
+public class LatencyMonitor {
+    /** SensorEvent timestamp to listener call */
+    public static final int SENSOR_DELAY = 0;
+    public static final int PRESSURE_LISTENER = 1;
+    public static final int ACCELERATION_LISTENER = 2;
+    public static final int FILTER_UPDATE = 3;
+    public static final int AUDIO_FILL = 4;
+
+    static final String[] names = {
+            "Sensor delay",
+            "PressureListener",
+            "AccelerationListener",
+            "filterUpdateSequential",
+            "AudioThread.fillBuffer",
+    };
+
+    final LatencyHistogram[] histograms = new LatencyHistogram[names.length];
+    volatile boolean enabled = false;
+
+    public LatencyMonitor() {
+        int i;
+
+        for (i = 0; i < names.length; i += 1) {
+            histograms[i] = new LatencyHistogram(names[i]);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * @return Start time for record(), or 0 when disabled
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record time elapsed since start()
+     */
+    public void record(int stage, long t0) {
+        if (t0 != 0) {
+            histograms[stage].record(System.nanoTime() - t0);
+        }
+    }
+
+    public void recordValue(int stage, long value) {
+        if (enabled) {
+            histograms[stage].record(value);
+        }
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : histograms) {
+            h.reset();
+        }
+    }
+
+    public void dump(PrintWriter out) {
+        for (LatencyHistogram h : histograms) {
+            h.dump(out);
+        }
+    }
+
+    public void dump(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Needle position between filter updates, for drawing at display refresh rate.
+ *
+ * The producer (sensor thread) adds timestamped estimates of vertical speed and acceleration;
+ * the consumer (UI thread) asks for the value at the frame time.
+ * With a known acceleration, the speed is extrapolated from the latest estimate;
+ * without it, the needle moves linearly between the two latest estimates, one update behind.
+ * When a new estimate disagrees with the extrapolated position, the difference is blended out
+ * over one update period, so the needle never jumps.
+ */
+public class NeedleAnimator {
+    static final int HISTORY = 8;
+
+    // Slots are atomic arrays, floats as raw bits, so their accesses are ordered with head
+    final AtomicLongArray time = new AtomicLongArray(HISTORY);
+    final AtomicIntegerArray speed = new AtomicIntegerArray(HISTORY);
+    final AtomicIntegerArray acceleration = new AtomicIntegerArray(HISTORY);
+
+    /** Number of estimates added, the latest one is at (head - 1) % HISTORY */
+    private volatile long head = 0;
+
+    /** Longest extrapolation, ns */
+    long maxExtrapolation = 200000000L;
+
+    // Consumer state: the estimates being shown
+    long seenHead = 0;
+    long segmentStart = 0;
+    long blendTime = 1;
+    long t1;
+    float v0, v1, a1;
+    float offset = 0;
+
+    /**
+     * Called by the producer thread only
+     * @param t Time of the estimate, System.nanoTime() base
+     * @param v Vertical speed, m/s
+     * @param a Vertical acceleration, m/s², NaN if not estimated
+     */
+    public void add(long t, float v, float a) {
+        long h = head;
+        int i = (int) (h % HISTORY);
+
+        time.set(i, t);
+        speed.set(i, Float.floatToRawIntBits(v));
+        acceleration.set(i, Float.floatToRawIntBits(a));
+        head = h + 1;
+    }
+
+    /**
+     * Forget the displayed position, the next value is shown without blending.
+     * Called by the consumer thread only.
+     */
+    public void resetDisplay() {
+        offset = 0;
+        seenHead = 0;
+    }
+
+    public void setMaxExtrapolation(long ns) {
+        maxExtrapolation = ns;
+    }
+
+    /*
+     *  Speed at time t predicted from the estimate (t_e, v, a)
+     */
+    float predict(long t_e, float v, float a, long t) {
+        long dt = t - t_e;
+
+        if (dt > maxExtrapolation) {
+            dt = maxExtrapolation;
+        }
+        if (dt < 0) {
+            dt = 0;
+        }
+
+        return v + a * (dt * 1e-9f);
+    }
+
+    /*
+     *  Displayed value of the current segment at time t
+     */
+    float evaluate(long t) {
+        float value;
+
+        if (Float.isNaN(a1)) {
+            // Linear interpolation, one update period behind
+            float k = (float) (t - segmentStart) / blendTime;
+            if (k > 1) {
+                k = 1;
+            }
+            value = v0 + (v1 - v0) * k;
+        } else {
+            value = predict(t1, v1, a1, t);
+        }
+
+        if (offset != 0) {
+            float k = 1 - (float) (t - segmentStart) / blendTime;
+            if (k > 0) {
+                value += offset * k;
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Called by the consumer thread only
+     * @param t Frame time, System.nanoTime() base
+     * @return Vertical speed to show, NaN if there are no estimates
+     */
+    public float getValue(long t) {
+        long h, h1, t0, t_1;
+        int i, j;
+        float v_0, v_1, a_1;
+
+        do {
+            h = head;
+            if (h == 0) {
+                return Float.NaN;
+            }
+
+            i = (int) ((h - 1) % HISTORY);
+            j = (int) ((h + HISTORY - 2) % HISTORY);
+            t_1 = time.get(i);
+            v_1 = Float.intBitsToFloat(speed.get(i));
+            a_1 = Float.intBitsToFloat(acceleration.get(i));
+            t0 = time.get(j);
+            v_0 = Float.intBitsToFloat(speed.get(j));
+
+            // Slot h - 2 is overwritten from the time head reaches h + HISTORY - 2
+            h1 = head;
+        } while (h1 - h >= HISTORY - 2);
+
+        if (h != seenHead) {
+            float previous = seenHead != 0 ? evaluate(t) : Float.NaN;
+
+            if (h < 2 || t_1 <= t0) {
+                t0 = t_1;
+                v_0 = v_1;
+            }
+
+            segmentStart = t;
+            blendTime = Math.max(1, t_1 - t0);
+            t1 = t_1;
+            v0 = v_0;
+            v1 = v_1;
+            a1 = a_1;
+            seenHead = h;
+
+            // Keep the needle where it was and blend out the difference
+            offset = 0;
+            float value = evaluate(t);
+            if (!Float.isNaN(previous) && !Float.isNaN(value)) {
+                offset = previous - value;
+            }
+        }
+
+        return evaluate(t);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * NMEA-style vario sentences for glide computers, written as ASCII into a ByteBuffer
+ * without allocating. An unknown (NaN) value leaves its field empty.
+ *
+ * <pre>
+ * $LXWP0,N,,altitude,vario,,,,,,,,*CS          altitude m, vario m/s
+ * $PTAS1,vario,average,altitude,*CS           vario and average kt·10 + 200, pressure altitude ft + 2000
+ * $POV,E,vario,P,pressure*CS                  vario m/s, static pressure hPa
+ * </pre>
+ */
+public class NmeaFormatter {
+    static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+    static final double KNOT = 1852.0 / 3600.0;
+    static final double FOOT = 0.3048;
+
+    final byte[] digits = new byte[20];
+
+    /** Position of '$' of the sentence being written */
+    int start;
+
+    public void begin(ByteBuffer b, String name) {
+        start = b.position();
+        b.put((byte) '$');
+        putAscii(b, name);
+    }
+
+    /**
+     * Append the checksum and the line end
+     */
+    public void end(ByteBuffer b) {
+        int checksum = 0;
+        int i;
+
+        // XOR of all characters between '$' and '*'
+        for (i = start + 1; i < b.position(); i += 1) {
+            checksum ^= b.get(i);
+        }
+
+        b.put((byte) '*');
+        b.put(HEX[(checksum >> 4) & 15]);
+        b.put(HEX[checksum & 15]);
+        b.put((byte) '\r');
+        b.put((byte) '\n');
+    }
+
+    public void comma(ByteBuffer b) {
+        b.put((byte) ',');
+    }
+
+    public void putAscii(ByteBuffer b, String s) {
+        int i;
+
+        for (i = 0; i < s.length(); i += 1) {
+            b.put((byte) s.charAt(i));
+        }
+    }
+
+    public void putLong(ByteBuffer b, long value) {
+        int n = 0;
+
+        if (value < 0) {
+            b.put((byte) '-');
+            value = -value;
+        }
+
+        do {
+            digits[n] = (byte) ('0' + value % 10);
+            value /= 10;
+            n += 1;
+        } while (value > 0);
+
+        while (n > 0) {
+            n -= 1;
+            b.put(digits[n]);
+        }
+    }
+
+    /**
+     * Decimal number with a fixed number of digits after the point, nothing if NaN
+     */
+    public void putFixed(ByteBuffer b, double value, int decimals) {
+        long scale = 1;
+        int i;
+
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+
+        for (i = 0; i < decimals; i += 1) {
+            scale *= 10;
+        }
+
+        long fixed = Math.round(Math.abs(value) * scale);
+        if (value < 0 && fixed != 0) {
+            b.put((byte) '-');
+        }
+
+        putLong(b, fixed / scale);
+        if (decimals > 0) {
+            long fraction = fixed % scale;
+            b.put((byte) '.');
+            for (scale /= 10; scale > 0; scale /= 10) {
+                b.put((byte) ('0' + fraction / scale % 10));
+            }
+        }
+    }
+
+    public void formatLXWP0(ByteBuffer b, double altitude, double vario) {
+        int i;
+
+        begin(b, "LXWP0");
+        comma(b);
+        // Not logging, no airspeed
+        b.put((byte) 'N');
+        comma(b);
+        comma(b);
+        putFixed(b, altitude, 1);
+        comma(b);
+        putFixed(b, vario, 2);
+        // Vario samples 2 to 6, heading, wind direction and speed
+        for (i = 0; i < 8; i += 1) {
+            comma(b);
+        }
+        end(b);
+    }
+
+    public void formatPTAS1(ByteBuffer b, double vario, double averageVario, double pressureAltitude) {
+        begin(b, "PTAS1");
+        comma(b);
+        if (!Double.isNaN(vario)) {
+            putLong(b, Math.round(vario / KNOT * 10) + 200);
+        }
+        comma(b);
+        if (!Double.isNaN(averageVario)) {
+            putLong(b, Math.round(averageVario / KNOT * 10) + 200);
+        }
+        comma(b);
+        if (!Double.isNaN(pressureAltitude)) {
+            putLong(b, Math.round(pressureAltitude / FOOT) + 2000);
+        }
+        // No airspeed
+        comma(b);
+        end(b);
+    }
+
+    public void formatPOV(ByteBuffer b, double vario, double pressure) {
+        begin(b, "POV");
+        comma(b);
+        b.put((byte) 'E');
+        comma(b);
+        putFixed(b, vario, 2);
+        if (!Double.isNaN(pressure)) {
+            comma(b);
+            b.put((byte) 'P');
+            comma(b);
+            putFixed(b, pressure, 2);
+        }
+        end(b);
+    }
+}
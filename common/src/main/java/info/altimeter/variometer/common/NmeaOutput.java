@@ -0,0 +1,223 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Vario sentences for glide computers (e.g. XCSoar, TCP client to 127.0.0.1:4353)
+ * on a local TCP port.
+ *
+ * Subscribed to a Variometer, it runs on the sensor thread: all socket operations are non-blocking,
+ * and each client has a bounded backlog. Sentences that do not fit the backlog of a slow client
+ * are dropped for that client, the sensor thread never waits.
+ */
+public class NmeaOutput implements Variometer.StateListener, Closeable {
+    public static final int DEFAULT_PORT = 4353;
+
+    static final int MAX_CLIENTS = 4;
+    static final int BACKLOG_SIZE = 4096;
+    /** Check for new clients at most twice per second */
+    static final long ACCEPT_INTERVAL = 500000000L;
+    /** Averaging time of the PTAS1 average vario, s */
+    static final double AVERAGE_TIME = 30;
+
+    final ServerSocketChannel server;
+    final SocketChannel[] clients = new SocketChannel[MAX_CLIENTS];
+    final ByteBuffer[] backlogs = new ByteBuffer[MAX_CLIENTS];
+    final ByteBuffer sentences = ByteBuffer.allocateDirect(512);
+    final NmeaFormatter formatter = new NmeaFormatter();
+
+    boolean sendLXWP0 = true;
+    boolean sendPTAS1 = true;
+    boolean sendPOV = true;
+
+    boolean accepted = false;
+    long lastAccept;
+    long lastTime;
+    double averageVario = Double.NaN;
+    long droppedBytes = 0;
+
+    /**
+     * Listen on the loopback interface
+     * @param port TCP port, 0 for any free port
+     */
+    public NmeaOutput(int port) throws IOException {
+        int i;
+
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+
+        for (i = 0; i < MAX_CLIENTS; i += 1) {
+            backlogs[i] = ByteBuffer.allocateDirect(BACKLOG_SIZE);
+        }
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public void setSentences(boolean lxwp0, boolean ptas1, boolean pov) {
+        sendLXWP0 = lxwp0;
+        sendPTAS1 = ptas1;
+        sendPOV = pov;
+    }
+
+    /**
+     * @return Number of bytes dropped because a client did not read fast enough
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public int getClientCount() {
+        int i, n = 0;
+
+        for (i = 0; i < MAX_CLIENTS; i += 1) {
+            if (clients[i] != null) {
+                n += 1;
+            }
+        }
+
+        return n;
+    }
+
+    /*
+     *  Standard atmosphere altitude at 1013.25 hPa
+     */
+    static double pressureAltitude(double p) {
+        return 44330.77 * (1 - Math.pow(p / 1013.25, 1 / 5.25593));
+    }
+
+    @Override
+    public void onStateUpdate(Variometer.StateUpdate u) {
+        double h = u.x[0];
+        double v = u.x[1];
+
+        if (Double.isNaN(averageVario)) {
+            averageVario = v;
+        } else {
+            double k = (u.timestamp - lastTime) * 1e-9 / AVERAGE_TIME;
+            averageVario += (v - averageVario) * Math.min(1, Math.max(0, k));
+        }
+        lastTime = u.timestamp;
+
+        if (!accepted || u.timestamp - lastAccept >= ACCEPT_INTERVAL) {
+            accepted = true;
+            lastAccept = u.timestamp;
+            accept();
+        }
+
+        if (getClientCount() == 0) {
+            return;
+        }
+
+        sentences.clear();
+        if (sendLXWP0) {
+            formatter.formatLXWP0(sentences, h, v);
+        }
+        if (sendPTAS1) {
+            double altitude = Double.isNaN(u.pressure) ? h : pressureAltitude(u.pressure);
+            formatter.formatPTAS1(sentences, v, averageVario, altitude);
+        }
+        if (sendPOV) {
+            formatter.formatPOV(sentences, v, u.pressure);
+        }
+        sentences.flip();
+
+        send(sentences);
+    }
+
+    void accept() {
+        int i;
+
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                for (i = 0; i < MAX_CLIENTS; i += 1) {
+                    if (clients[i] == null) {
+                        break;
+                    }
+                }
+
+                if (i == MAX_CLIENTS) {
+                    channel.close();
+                    continue;
+                }
+
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                clients[i] = channel;
+                backlogs[i].clear();
+            }
+        } catch (IOException e) {
+            // Try again on the next interval
+        }
+    }
+
+    /**
+     * Queue data for every client and write as much as each socket takes without blocking
+     */
+    void send(ByteBuffer data) {
+        int i;
+
+        for (i = 0; i < MAX_CLIENTS; i += 1) {
+            SocketChannel channel = clients[i];
+            ByteBuffer backlog = backlogs[i];
+
+            if (channel == null) {
+                continue;
+            }
+
+            // The backlog is kept in write mode between calls
+            if (backlog.remaining() >= data.remaining()) {
+                int position = data.position();
+                backlog.put(data);
+                data.position(position);
+            } else {
+                droppedBytes += data.remaining();
+            }
+
+            try {
+                backlog.flip();
+                channel.write(backlog);
+                backlog.compact();
+            } catch (IOException e) {
+                closeClient(i);
+            }
+        }
+    }
+
+    void closeClient(int i) {
+        try {
+            clients[i].close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+        clients[i] = null;
+        backlogs[i].clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        int i;
+
+        for (i = 0; i < MAX_CLIENTS; i += 1) {
+            if (clients[i] != null) {
+                closeClient(i);
+            }
+        }
+        server.close();
+    }
+}
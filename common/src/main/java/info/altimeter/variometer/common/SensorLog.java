@@ -0,0 +1,139 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static info.altimeter.variometer.common.FileSensorSource.RECORD_ACCELERATION;
+import static info.altimeter.variometer.common.FileSensorSource.RECORD_LINEAR_ACCELERATION;
+import static info.altimeter.variometer.common.FileSensorSource.RECORD_PRESSURE;
+import static info.altimeter.variometer.common.FileSensorSource.RECORD_ROTATION;
+
+/**
+ * Sensor log held in memory, in primitive arrays.
+ * Once loaded, it can be replayed by any number of threads at the same time.
+ */
+public class SensorLog implements SensorSource, SensorSource.Receiver {
+    double[] periods = new double[3];
+    byte[] type;
+    long[] time;
+    /** Four values per record */
+    float[] values;
+    int count = 0;
+
+    public SensorLog(int capacity) {
+        type = new byte[capacity];
+        time = new long[capacity];
+        values = new float[capacity * 4];
+    }
+
+    public static SensorLog load(File file) throws IOException {
+        FileSensorSource source = new FileSensorSource(file);
+        SensorLog log = new SensorLog((int) Math.min(file.length() / 17, Integer.MAX_VALUE - 8));
+        int i;
+
+        for (i = 0; i < 3; i += 1) {
+            log.periods[i] = source.getMinPeriod(i);
+        }
+        source.start(log, 0, 0, 0);
+        if (source.getError() != null) {
+            throw source.getError();
+        }
+
+        return log;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return Time span of the log, s
+     */
+    public double getDuration() {
+        if (count < 2) {
+            return 0;
+        }
+
+        return (time[count - 1] - time[0]) * 1e-9;
+    }
+
+    @Override
+    public double getMinPeriod(int sensor) {
+        return periods[sensor];
+    }
+
+    public void setMinPeriod(int sensor, double period) {
+        periods[sensor] = period;
+    }
+
+    @Override
+    public void start(Receiver receiver, double pressurePeriod, double accelerationPeriod, double rotationPeriod) {
+        int i, j;
+
+        for (i = 0; i < count; i += 1) {
+            j = i * 4;
+            switch (type[i]) {
+            case RECORD_PRESSURE:
+                receiver.onPressure(time[i], values[j]);
+                break;
+            case RECORD_ACCELERATION:
+                receiver.onAcceleration(time[i], values[j], values[j + 1], values[j + 2], false);
+                break;
+            case RECORD_LINEAR_ACCELERATION:
+                receiver.onAcceleration(time[i], values[j], values[j + 1], values[j + 2], true);
+                break;
+            case RECORD_ROTATION:
+                receiver.onRotation(time[i], values[j], values[j + 1], values[j + 2], values[j + 3]);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        // Replay is bounded by the log size, and the log is shared between threads
+    }
+
+    private int append(byte t, long timestamp) {
+        if (count == type.length) {
+            int capacity = Math.max(16, count * 2);
+            type = Arrays.copyOf(type, capacity);
+            time = Arrays.copyOf(time, capacity);
+            values = Arrays.copyOf(values, capacity * 4);
+        }
+
+        type[count] = t;
+        time[count] = timestamp;
+
+        return 4 * count++;
+    }
+
+    @Override
+    public void onPressure(long timestamp, float p) {
+        int j = append(RECORD_PRESSURE, timestamp);
+        values[j] = p;
+    }
+
+    @Override
+    public void onAcceleration(long timestamp, float x, float y, float z, boolean linear) {
+        int j = append(linear ? RECORD_LINEAR_ACCELERATION : RECORD_ACCELERATION, timestamp);
+        values[j] = x;
+        values[j + 1] = y;
+        values[j + 2] = z;
+    }
+
+    @Override
+    public void onRotation(long timestamp, float x, float y, float z, float w) {
+        int j = append(RECORD_ROTATION, timestamp);
+        values[j] = x;
+        values[j + 1] = y;
+        values[j + 2] = z;
+        values[j + 3] = w;
+    }
+}
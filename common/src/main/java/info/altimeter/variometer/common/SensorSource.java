@@ -0,0 +1,54 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+/**
+ * Source of pressure, acceleration and rotation samples for {@link Variometer}.
+ * Implementations may deliver events asynchronously (device sensors)
+ * or synchronously on the calling thread (recorded logs).
+ */
+public interface SensorSource {
+    int PRESSURE = 0;
+    int ACCELERATION = 1;
+    int ROTATION = 2;
+
+    /**
+     * Receiver of sensor events, called on the sensor thread
+     */
+    interface Receiver {
+        /**
+         * @param timestamp Event time, ns
+         * @param p Atmospheric pressure, hPa
+         */
+        void onPressure(long timestamp, float p);
+
+        /**
+         * @param timestamp Event time, ns
+         * @param linear True if gravity is already removed from the vector
+         */
+        void onAcceleration(long timestamp, float x, float y, float z, boolean linear);
+
+        /**
+         * Rotation as a unit quaternion [ x, y, z, w ]
+         * @param timestamp Event time, ns
+         */
+        void onRotation(long timestamp, float x, float y, float z, float w);
+    }
+
+    /**
+     * @param sensor One of PRESSURE, ACCELERATION, ROTATION
+     * @return Minimum sampling period in seconds, NaN if the sensor is not available
+     */
+    double getMinPeriod(int sensor);
+
+    /**
+     * Start delivering events to the receiver.
+     * A period that is zero or negative means the sensor is not used.
+     */
+    void start(Receiver receiver, double pressurePeriod, double accelerationPeriod, double rotationPeriod);
+
+    void stop();
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+/**
+ * Filter engine driven by Variometer: altitude, vertical speed and,
+ * with three states, vertical acceleration.
+ */
+public interface StateEstimator {
+
+    int getStateDim();
+
+    /**
+     * @return Element i of the state vector
+     */
+    double getState(int i);
+
+    void setState(int i, double value);
+
+    /**
+     * @return Element (i, i) of the state covariance matrix
+     */
+    double getVariance(int i);
+
+    int getState(double[] dst);
+
+    int setPeriod(double dt);
+
+    int setProcessNoise(double dt, double var);
+
+    int initCovariance(double[] std);
+
+    int setMeasurementError(double[] std);
+
+    /**
+     * Set element (i, j) of the observation model H, relating input i to state j
+     */
+    void setObservation(int i, int j, double value);
+
+    void setStatistics(InnovationStatistics stats);
+
+    /**
+     * Propagate the covariance and recompute the gains only every interval predictions,
+     * or earlier when the innovations drift; the state is updated with cached gains in between
+     * @param interval Number of predictions, 1 to update the covariance on every step
+     */
+    void setCovarianceInterval(int interval);
+
+    int filterPredict(double[] control);
+
+    int filterUpdate(double[] input);
+
+    int filterUpdateSequential(int i, double z_i);
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+/**
+ * Ring buffer of the state vectors of the last steps, for the fixed-lag smoother.
+ * Each vector is contiguous in one array, so the backward pass over the window
+ * corrects them in place and reads memory linearly.
+ */
+class StateHistory {
+    final int stateDim;
+    final int capacity;
+
+    /** Vector of step n at (n % capacity) · stateDim */
+    final double[] data;
+
+    /** Sample time of the step in each slot */
+    final long[] time;
+
+    /** Slot of the next step */
+    int head = 0;
+    /** Number of steps available */
+    int count = 0;
+
+    StateHistory(int stateDim, int capacity) {
+        this.stateDim = stateDim;
+        this.capacity = capacity;
+        data = new double[stateDim * capacity];
+        time = new long[capacity];
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * Append a state, replacing the oldest one when full
+     */
+    void add(double[] x, long t) {
+        System.arraycopy(x, 0, data, head * stateDim, stateDim);
+        time[head] = t;
+
+        head += 1;
+        if (head == capacity) {
+            head = 0;
+        }
+
+        if (count < capacity) {
+            count += 1;
+        }
+    }
+
+    /**
+     * @param age Number of steps before the newest state
+     * @return Offset of the state in data
+     */
+    int offset(int age) {
+        int t = head - 1 - age;
+
+        if (t < 0) {
+            t += capacity;
+        }
+
+        return t * stateDim;
+    }
+}
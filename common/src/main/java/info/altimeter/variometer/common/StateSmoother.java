@@ -0,0 +1,34 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+/**
+ * Fixed-lag smoother that passes every step to a sink once, when it leaves the window
+ * and its smoothed state is final
+ */
+public interface StateSmoother extends StateEstimator {
+
+    interface Sink {
+        /**
+         * Called on the filter thread; x is reused and only valid during the call
+         * @param timestamp Sample time of the step, see setTime()
+         * @param x Smoothed state
+         */
+        void onSmoothedState(long timestamp, double[] x);
+    }
+
+    void setSink(Sink sink);
+
+    /**
+     * Set the sample time of the next step, before the update of the smoothing input
+     */
+    void setTime(long timestamp);
+
+    /**
+     * Pass the steps remaining in the window to the sink, oldest first, and clear the window
+     */
+    void flush();
+}
@@ -1,33 +1,29 @@
 package info.altimeter.variometer.common;
 
 import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorAdditionalInfo;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.os.Build;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Process;
-
-import androidx.annotation.RequiresApi;
 
 public class Variometer {
     VariometerListener listener;
+    volatile Subscription[] subscribers = new Subscription[0];
+    final StateUpdate current = new StateUpdate();
+    double lastPressure = Double.NaN;
     boolean inertial;
     AtmosphereModel atmosphere;
-    KalmanFilter filter;
+    /** Kalman filter implementation */
+    EstimatorFactory.Engine engine;
+    StateEstimator filter;
     PressureListener listenerP;
     AccelerationListener listenerA;
     RotationListener listenerR;
+    SourceReceiver receiver;
+    SensorSource source;
+    InnovationStatistics statistics = null;
+    LatencyMonitor latency = new LatencyMonitor();
+    VariometerState published = new VariometerState();
 
-    private HandlerThread mSensorThread;
-    private Handler mSensorHandler;
-
-    Sensor pressureSensor;
-    Sensor rotationSensor;
-    Sensor accelerometers;
+    /** Number of sensor events processed since start */
+    long sampleCount = 0;
 
     // For target API 31 (Android 12), sensor rate is limited to 200 Hz
     // https://developer.android.com/guide/topics/sensors/sensors_overview#sensors-rate-limiting
@@ -47,12 +43,42 @@ public class Variometer {
     double rotationSamplingPeriod;
     int rotationSamplePeriod_us;
 
+    // With decimation, sensors run at up to 200 Hz, the rate limit without HIGH_SAMPLING_RATE_SENSORS
+    boolean decimation = false;
+    double minSensorSamplingPeriod = 0.005;
+    Decimator pressureDecimator = null;
+    Decimator accelerationDecimator = null;
+
+    /** Filter steps between covariance updates, see setCovarianceInterval() */
+    int covarianceInterval = 1;
+
+    /** Receives the final smoothed states, see setSmoothedStateSink() */
+    StateSmoother.Sink smoothedStateSink = null;
+    /** The filter if it is a smoother, null otherwise */
+    StateSmoother smoother = null;
+
     // Default accelerometer noise density is 300 µg/√Hz
     double accelerometerNoiseDensity = 0.002942;
     // Pressure sensor noise in hPa
     double pressureSensorNoise = 5;
     double filterPeriod = 1e-3;
 
+    /** Two-state inertial filter with acceleration as control input, see setControlInput() */
+    boolean controlInput = false;
+    double[] control = new double[1];
+
+    /** Crossover time constant of the complementary filter, 0 for the Kalman filter */
+    double complementaryTime = 0;
+
+    /** Filter pressure samples instead of altitude, see setPressureDomain() */
+    boolean pressureDomain = false;
+    /** Altitude change (m) after which the pressure model is linearized again */
+    double linearizationThreshold = 10;
+    /** Linearization point: altitude, pressure and dp/dh */
+    double linearAltitude = Double.NaN;
+    double linearPressure;
+    double pressureSlope;
+
     double[] input = new double[2];
     double[] state;
     double[] correctionWeight = { 1, 1, 1 };
@@ -61,7 +87,6 @@ public class Variometer {
     double[] q = new double[4];
     double[] q1 = new double[4];
     double[] v = new double[4];
-    boolean realPartMayBeMissing = true;
     int smoother_lag;
     double sigma_p = 0.06;
     double sigma_h = 1.0;
@@ -79,12 +104,18 @@ public class Variometer {
     boolean knownAltitude = false;
 
     public Variometer(boolean ivsi, int lag) {
+        this(ivsi, lag, false);
+    }
+
+    /**
+     * @param ivsi Inertial mode, with vertical acceleration
+     * @param lag Fixed-lag smoother length, 0 for no smoothing
+     * @param single Use the single precision (float) filter engine
+     */
+    public Variometer(boolean ivsi, int lag, boolean single) {
         inertial = ivsi;
         smoother_lag = lag;
-
-        if (Build.VERSION.SDK_INT >= 18) {
-            realPartMayBeMissing = false;
-        }
+        engine = single ? EstimatorFactory.FLOAT : EstimatorFactory.DOUBLE;
 
         if (inertial) {
             state = new double[3];
@@ -97,8 +128,7 @@ public class Variometer {
         listenerR = new RotationListener();
         listenerA = new AccelerationListener();
         listenerP = new PressureListener();
-
-        mSensorThread = new HandlerThread("Variometer Sensors", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        receiver = new SourceReceiver();
     }
 
     public interface VariometerListener {
@@ -109,6 +139,219 @@ public class Variometer {
         listener = l;
     }
 
+    /**
+     * Filter state passed to a StateListener. The same object is reused for every call,
+     * copy the values needed after onStateUpdate() returns.
+     */
+    public static class StateUpdate {
+        /** Fields after stateDim were added in later versions */
+        public static final int VERSION = 2;
+
+        public final int version = VERSION;
+        /** Event time of the triggering sensor sample, SystemClock.elapsedRealtimeNanos() base */
+        public long timestamp;
+        /** SensorSource.PRESSURE or SensorSource.ACCELERATION */
+        public int sensor;
+        /** Number of valid elements in x and variance: 2 in VSI mode, 3 in IVSI mode */
+        public int stateDim;
+        /** Altitude (m), vertical speed (m/s), vertical acceleration (m/s²) */
+        public final double[] x = new double[3];
+        /** Diagonal of the state covariance matrix P */
+        public final double[] variance = new double[3];
+        /** Latest pressure sample, hPa (version 2) */
+        public double pressure = Double.NaN;
+
+        void set(StateUpdate u) {
+            timestamp = u.timestamp;
+            sensor = u.sensor;
+            stateDim = u.stateDim;
+            System.arraycopy(u.x, 0, x, 0, 3);
+            System.arraycopy(u.variance, 0, variance, 0, 3);
+            pressure = u.pressure;
+        }
+    }
+
+    /**
+     * Version 2 of VariometerListener, with the complete filter state
+     */
+    public interface StateListener {
+        void onStateUpdate(StateUpdate update);
+    }
+
+    /**
+     * Listener with its own maximum update rate.
+     * Updates in between are dropped, or averaged into the next delivered one.
+     */
+    public static class Subscription {
+        final VariometerListener listener;
+        final StateListener stateListener;
+        final long minInterval;
+        final boolean averaging;
+
+        /** Owned by the subscription, so that a listener cannot change what others receive */
+        final StateUpdate state = new StateUpdate();
+        final double[] sumX = new double[3];
+        final double[] sumVariance = new double[3];
+        boolean delivered = false;
+        long lastTime;
+        int count = 0;
+
+        Subscription(VariometerListener l, StateListener sl, double maxRate, boolean average) {
+            listener = l;
+            stateListener = sl;
+            minInterval = maxRate > 0 ? Math.round(1e9 / maxRate) : 0;
+            averaging = average;
+        }
+
+        void update(StateUpdate u) {
+            int i;
+
+            if (averaging) {
+                for (i = 0; i < u.stateDim; i += 1) {
+                    sumX[i] += u.x[i];
+                    sumVariance[i] += u.variance[i];
+                }
+            }
+            count += 1;
+
+            if (delivered && u.timestamp - lastTime < minInterval) {
+                return;
+            }
+
+            state.set(u);
+            if (averaging && count > 1) {
+                for (i = 0; i < u.stateDim; i += 1) {
+                    state.x[i] = sumX[i] / count;
+                    state.variance[i] = sumVariance[i] / count;
+                }
+            }
+
+            if (stateListener != null) {
+                stateListener.onStateUpdate(state);
+            } else {
+                listener.onStateUpdate((float) state.x[0], (float) state.x[1]);
+            }
+
+            delivered = true;
+            lastTime = u.timestamp;
+            for (i = 0; i < 3; i += 1) {
+                sumX[i] = 0;
+                sumVariance[i] = 0;
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * Add a listener notified on the sensor thread after every filter update,
+     * but not more often than maxRate.
+     * @param maxRate Maximum number of updates per second, 0 for every update
+     * @param average Deliver the mean of the skipped updates instead of the latest one
+     */
+    public Subscription subscribe(VariometerListener l, double maxRate, boolean average) {
+        return subscribe(new Subscription(l, null, maxRate, average));
+    }
+
+    /**
+     * Add a listener of the complete filter state, see subscribe(VariometerListener, double, boolean)
+     */
+    public Subscription subscribe(StateListener l, double maxRate, boolean average) {
+        return subscribe(new Subscription(null, l, maxRate, average));
+    }
+
+    synchronized Subscription subscribe(Subscription s) {
+        Subscription[] list = new Subscription[subscribers.length + 1];
+
+        System.arraycopy(subscribers, 0, list, 0, subscribers.length);
+        list[subscribers.length] = s;
+        subscribers = list;
+
+        return s;
+    }
+
+    public synchronized void unsubscribe(Subscription s) {
+        Subscription[] old = subscribers;
+        int i;
+
+        for (i = 0; i < old.length; i += 1) {
+            if (old[i] == s) {
+                Subscription[] list = new Subscription[old.length - 1];
+                System.arraycopy(old, 0, list, 0, i);
+                System.arraycopy(old, i + 1, list, i, old.length - i - 1);
+                subscribers = list;
+                return;
+            }
+        }
+    }
+
+    /*
+     *  The subscriber list is replaced, never modified, so the sensor thread iterates without locking
+     */
+    void dispatch(long timestamp, int sensor) {
+        Subscription[] list = subscribers;
+        StateUpdate u = current;
+        int i;
+
+        if (list.length == 0) {
+            return;
+        }
+
+        u.timestamp = timestamp;
+        u.sensor = sensor;
+        u.stateDim = filter.getStateDim();
+        for (i = 0; i < u.stateDim; i += 1) {
+            u.x[i] = filter.getState(i);
+            u.variance[i] = filter.getVariance(i);
+        }
+        u.pressure = lastPressure;
+
+        for (i = 0; i < list.length; i += 1) {
+            list[i].update(u);
+        }
+    }
+
+    /**
+     * Accumulate innovation statistics of the filter, or stop it with null.
+     * Statistics have one input (altitude) in VSI mode, two inputs (altitude, acceleration) in IVSI mode
+     * unless acceleration is a control input.
+     */
+    public void setStatistics(InnovationStatistics stats) {
+        statistics = stats;
+        if (filter != null) {
+            filter.setStatistics(stats);
+        }
+    }
+
+    /**
+     * Share latency histograms with other stages of the pipeline
+     */
+    public void setLatencyMonitor(LatencyMonitor monitor) {
+        latency = monitor;
+    }
+
+    public LatencyMonitor getLatencyMonitor() {
+        return latency;
+    }
+
+    /**
+     * Publish estimates to a state shared with other components,
+     * e.g. one that outlives this variometer
+     */
+    public void setPublishedState(VariometerState state) {
+        published = state;
+    }
+
+    /**
+     * @return Latest estimate, updated after every filter update
+     */
+    public VariometerState getPublishedState() {
+        return published;
+    }
+
+    public InnovationStatistics newStatistics() {
+        return new InnovationStatistics(inertial && !usesControlInput() ? 2 : 1);
+    }
+
     public void setProcessNoise(double sigma) {
         sigma_vsi = sigma;
         sigma_ivsi = sigma;
@@ -130,6 +373,89 @@ public class Variometer {
         accelerometerNoiseDensity = std_a;
     }
 
+    /**
+     * Select the Kalman filter implementation, e.g. EstimatorFactory.getSelected(). Call before start().
+     */
+    public void setEngine(EstimatorFactory.Engine e) {
+        engine = e;
+    }
+
+    public EstimatorFactory.Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * In inertial mode, apply vertical acceleration as a control input of a two-state filter
+     * (altitude, vertical speed) instead of measuring it as a third state. Each accelerometer
+     * sample then costs a 2x2 prediction, accelerometer noise becomes process noise,
+     * and the vertical acceleration is not estimated. The smoother lag is not used in this mode.
+     * Call before start().
+     */
+    public void setControlInput(boolean enable) {
+        controlInput = enable;
+    }
+
+    /**
+     * Use a ComplementaryFilter instead of the Kalman filter, with acceleration as control input
+     * in inertial mode; in VSI mode it works as an alpha-beta filter on altitude. Call before start().
+     * @param timeConstant Crossover time constant (s), 0 for the Kalman filter
+     */
+    public void setComplementaryFilter(double timeConstant) {
+        complementaryTime = timeConstant;
+    }
+
+    /*
+     *  The complementary filter always takes acceleration as control input,
+     *  the Kalman filter only if setControlInput() asked for it
+     */
+    boolean usesControlInput() {
+        return controlInput || complementaryTime > 0;
+    }
+
+    /**
+     * Sample the sensors at their maximum rate and decimate with a low-pass filter to the filter rate
+     * (25 Hz pressure, 50 Hz acceleration), instead of sampling them at the filter rate.
+     * Sensor noise above the filter rate is removed rather than aliased, for a group delay
+     * of three filter periods of the slower input, normally the barometer: 120 ms at 25 Hz,
+     * 300 ms with a 10 Hz barometer. Both inputs get the same delay in seconds, so that
+     * the filter fuses samples of the same time; in IVSI mode, an input that is not decimated
+     * is still filtered with that delay. Call before start().
+     */
+    public void setDecimation(boolean enable) {
+        decimation = enable;
+    }
+
+    /**
+     * With the smoother lag set, pass every step to the sink once, with its sample time,
+     * when it leaves the smoother window. Steps remaining in the window are passed on stop().
+     * Call before start().
+     */
+    public void setSmoothedStateSink(StateSmoother.Sink sink) {
+        smoothedStateSink = sink;
+    }
+
+    /**
+     * Update the filter covariance and gains only every interval steps once they have converged,
+     * or earlier when the innovations stop matching them; in between, the state is updated
+     * with the cached gains. Not used with the smoother. Call before start().
+     * @param interval Filter steps, 1 to update the covariance on every step
+     */
+    public void setCovarianceInterval(int interval) {
+        covarianceInterval = interval;
+    }
+
+    /**
+     * Use pressure samples as the filter input, with the atmosphere model linearized
+     * around the estimated altitude, instead of converting every sample to altitude.
+     * Pressure noise is then constant and innovation statistics are in hPa.
+     * Call before start().
+     * @param threshold Altitude change (m) after which the model is linearized again
+     */
+    public void setPressureDomain(boolean enable, double threshold) {
+        pressureDomain = enable;
+        linearizationThreshold = threshold;
+    }
+
     public void setAccelerometerCorrection(double[] weights, double[] biases) {
         int k;
 
@@ -195,6 +521,15 @@ public class Variometer {
             return Math.pow(1 - h / H, n1) * p0;
         }
 
+        /**
+         * @param h Altitude (m)
+         * @param p Pressure at altitude h (hPa)
+         * @return Derivative of pressure by altitude, hPa/m
+         */
+        double getPressureSlope(double h, double p) {
+            return -n1 * p / (H - h);
+        }
+
         /**
          * Get altitude measurement noise from pressure sensor noise
          * at the specified altitude
@@ -208,83 +543,144 @@ public class Variometer {
         }
     }
 
-    private class PressureListener implements SensorEventListener {
+    private class SourceReceiver implements SensorSource.Receiver {
+
+        @Override
+        public void onPressure(long timestamp, float p) {
+            sampleCount += 1;
+            listenerP.onSensorChanged(timestamp, p);
+        }
+
+        @Override
+        public void onAcceleration(long timestamp, float x, float y, float z, boolean linear) {
+            sampleCount += 1;
+            listenerA.onSensorChanged(timestamp, x, y, z, linear);
+        }
 
-        public void onAccuracyChanged(Sensor arg0, int arg1) {
+        @Override
+        public void onRotation(long timestamp, float x, float y, float z, float w) {
+            sampleCount += 1;
+            listenerR.onSensorChanged(timestamp, x, y, z, w);
         }
+    }
 
-        public void onSensorChanged(SensorEvent arg0) {
-            float p = arg0.values[0];
-            double alt;
+    private class PressureListener {
+
+        public void onSensorChanged(long timestamp, float p) {
+            long t0 = latency.start();
+
+            update(timestamp, p);
+            latency.record(LatencyMonitor.PRESSURE_LISTENER, t0);
+        }
+
+        void update(long timestamp, float sample) {
+            double measurement;
+            double p = sample;
 
             if (p == 0)
                 return;
 
-            alt = atmosphere.getAltitude(p);
-            input[0] = alt;
+            if (pressureDecimator != null) {
+                if (!pressureDecimator.add(p)) {
+                    return;
+                }
+                p = pressureDecimator.getOutput();
+            }
+
+            lastPressure = p;
 
             if (!knownAltitude) {
-                filter.x.set(0, 0, alt);
+                filter.setState(0, atmosphere.getAltitude(p));
                 knownAltitude = true;
                 return;
             }
 
+            if (pressureDomain) {
+                /*
+                 *  p ≈ p₀ + J·(h - h₀), so the linear filter gets z = p - p₀ + J·h₀
+                 *  with H = [ J 0 0 ]; the model is refreshed only after large altitude changes
+                 */
+                double h = filter.getState(0);
+                if (!(Math.abs(h - linearAltitude) < linearizationThreshold)) {
+                    linearize(h);
+                }
+                measurement = p - linearPressure + pressureSlope * linearAltitude;
+            } else {
+                measurement = atmosphere.getAltitude(p);
+            }
+            input[0] = measurement;
+
+            if (smoother != null) {
+                smoother.setTime(timestamp);
+            }
+
             if (!inertial) {
-                double[] z = { alt };
+                double[] z = { measurement };
+                long t0 = latency.start();
                 filter.filterPredict(null);
                 filter.filterUpdate(z);
+                latency.record(LatencyMonitor.FILTER_UPDATE, t0);
             } else {
-                filter.filterUpdateSequential(0, alt);
+                long t0 = latency.start();
+                filter.filterUpdateSequential(0, measurement);
+                latency.record(LatencyMonitor.FILTER_UPDATE, t0);
             }
             filter.getState(state);
             float altitude = (float) state[0];
             float vspeed = (float) state[1];
 
-            sigma_h = atmosphere.getStdH(state[0], sigma_p);
-            if (inertial) {
-                double[] r = { sigma_h, sigma_a };
-                filter.setMeasurementError(r);
-            } else {
-                double[] r = { sigma_h };
-                filter.setMeasurementError(r);
+            // In the pressure domain, measurement noise does not depend on altitude
+            if (!pressureDomain) {
+                sigma_h = atmosphere.getStdH(state[0], sigma_p);
+                if (inertial && !usesControlInput()) {
+                    double[] r = { sigma_h, sigma_a };
+                    filter.setMeasurementError(r);
+                } else {
+                    double[] r = { sigma_h };
+                    filter.setMeasurementError(r);
+                }
             }
 
+            published.publish(timestamp, filter);
+
             if (listener != null) {
                 listener.onStateUpdate(altitude, vspeed);
             }
+            dispatch(timestamp, SensorSource.PRESSURE);
         }
     }
 
-    private class AccelerationListener implements SensorEventListener {
+    /*
+     *  Linearize the atmosphere model at altitude h for the pressure domain filter
+     */
+    void linearize(double h) {
+        linearAltitude = h;
+        linearPressure = atmosphere.getPressure(h);
+        pressureSlope = atmosphere.getPressureSlope(h, linearPressure);
+        filter.setObservation(0, 0, pressureSlope);
+    }
 
-        @RequiresApi(api = Build.VERSION_CODES.N)
-        public void onSensorAdditionalInfo (SensorAdditionalInfo info) {
-            if (info.type == SensorAdditionalInfo.TYPE_SAMPLING) {
+    private class AccelerationListener {
 
-            }
-        }
+        public void onSensorChanged(long timestamp, float a_x, float a_y, float a_z, boolean linear) {
+            long t0 = latency.start();
 
-        public void onAccuracyChanged(Sensor arg0, int arg1) {
+            update(timestamp, a_x, a_y, a_z, linear);
+            latency.record(LatencyMonitor.ACCELERATION_LISTENER, t0);
         }
 
-        public void onSensorChanged(SensorEvent arg0) {
+        void update(long timestamp, float a_x, float a_y, float a_z, boolean linear) {
             if (!knownRotation)
                 return;
 
             if (!knownAltitude)
                 return;
 
-            double a_x, a_y, a_z;
-
             /*
              *  Transform the acceleration vector to the reference coordinate system
              *  of the rotation sensor, where Z axis is vertical and points up
              */
 
-            a_x = arg0.values[0];
-            a_y = arg0.values[1];
-            a_z = arg0.values[2];
-
             acc[0] = correctionWeight[0] * a_x + correctionBias[0];
             acc[1] = correctionWeight[1] * a_y + correctionBias[1];
             acc[2] = correctionWeight[2] * a_z + correctionBias[2];
@@ -299,158 +695,242 @@ public class Variometer {
             HamiltonProduct(v, acc);
             HamiltonProduct(v, q1);
 
-            if (arg0.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+            if (linear) {
+                input[1] = v[2];
+            } else {
                 input[1] = (v[2] - gravity);
             }
 
-            if (arg0.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION) {
-                input[1] = v[2];
+            if (accelerationDecimator != null) {
+                if (!accelerationDecimator.add(input[1])) {
+                    return;
+                }
+                input[1] = accelerationDecimator.getOutput();
             }
 
-            if (inertial) {
+            if (inertial && usesControlInput()) {
+                long t0 = latency.start();
+                control[0] = input[1];
+                filter.filterPredict(control);
+                latency.record(LatencyMonitor.FILTER_UPDATE, t0);
+                published.publish(timestamp, filter);
+                dispatch(timestamp, SensorSource.ACCELERATION);
+            } else if (inertial) {
+                if (smoother != null) {
+                    smoother.setTime(timestamp);
+                }
                 filter.filterPredict(null);
+                long t0 = latency.start();
                 filter.filterUpdateSequential(1, input[1]);
+                latency.record(LatencyMonitor.FILTER_UPDATE, t0);
+                published.publish(timestamp, filter);
+                dispatch(timestamp, SensorSource.ACCELERATION);
             }
         }
     }
 
-    private class RotationListener implements SensorEventListener {
-
-        public void onAccuracyChanged(Sensor arg0, int arg1) {
-        }
-
-        public void onSensorChanged(SensorEvent event) {
-            double x, y, z;
-            double ll;
+    private class RotationListener {
 
-            q[0] = event.values[0];
-            q[1] = event.values[1];
-            q[2] = event.values[2];
-            q[3] = event.values[3];
-            if (realPartMayBeMissing) {
-                // Compute the real part of a unit quaternion from the 3 imaginary parts
-                x = q[0];
-                y = q[1];
-                z = q[2];
-                ll = x * x + y * y + z * z;
-                q[3] = Math.sqrt(1 - ll);
-            }
+        public void onSensorChanged(long timestamp, float x, float y, float z, float w) {
+            q[0] = x;
+            q[1] = y;
+            q[2] = z;
+            q[3] = w;
 
             knownRotation = true;
         }
     }
 
+    /*
+     *  Complementary filter, or Kalman filter of the selected engine with a smoother if the lag is set
+     */
+    StateEstimator newFilter(int state, int input, int controls, int smoothingInput) {
+        if (complementaryTime > 0) {
+            return new ComplementaryFilter(complementaryTime);
+        }
+
+        // The smoother expects one prediction per update, not the case with a control input
+        return engine.create(state, input, controls, controls == 0 ? smoother_lag : 0, smoothingInput);
+    }
+
     public void start(Context context) {
-        SensorManager manager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        AndroidSensorSource src = new AndroidSensorSource(context);
+        src.setLatencyMonitor(latency);
+        start(src);
+    }
+
+    /**
+     * Initialize the filter for sampling rates of the source and start processing its events.
+     * Recorded sources are replayed on the calling thread before this method returns.
+     */
+    public void start(SensorSource src) {
+        int pressureFactor, accelerationFactor;
+
+        source = src;
 
-        pressureSensor = manager.getDefaultSensor(Sensor.TYPE_PRESSURE);
-        if (pressureSensor == null) {
+        pressureSamplingPeriod = source.getMinPeriod(SensorSource.PRESSURE);
+        if (Double.isNaN(pressureSamplingPeriod)) {
             return;
         }
-        pressureSamplingPeriod = pressureSensor.getMinDelay() * 1e-6;
+        pressureFactor = getDecimation(pressureSamplingPeriod, minPressureSamplingPeriod);
         if (pressureSamplingPeriod < minPressureSamplingPeriod) {
             pressureSamplingPeriod = minPressureSamplingPeriod;
         }
-        pressureSamplePeriod_us = (int) Math.round(pressureSamplingPeriod * 1e6);
+        pressureSamplePeriod_us = (int) Math.round(pressureSamplingPeriod / pressureFactor * 1e6);
 
-        accelerometers = manager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        if (accelerometers == null) {
+        accelerationSamplingPeriod = source.getMinPeriod(SensorSource.ACCELERATION);
+        if (Double.isNaN(accelerationSamplingPeriod)) {
             return;
         }
-        accelerationSamplingPeriod = accelerometers.getMinDelay() * 1e-6;
+        accelerationFactor = getDecimation(accelerationSamplingPeriod, minAccelerationSamplingPeriod);
         if (accelerationSamplingPeriod < minAccelerationSamplingPeriod) {
             accelerationSamplingPeriod = minAccelerationSamplingPeriod;
         }
-        accelerationSamplePeriod_us = (int) Math.round(accelerationSamplingPeriod * 1e6);
+        accelerationSamplePeriod_us = (int) Math.round(accelerationSamplingPeriod / accelerationFactor * 1e6);
         rotationSamplePeriod_us = accelerationSamplePeriod_us;
 
+        pressureDecimator = null;
+        accelerationDecimator = null;
+        if (pressureFactor > 1 || (inertial && accelerationFactor > 1)) {
+            // The filter fuses both inputs, so they are delayed by the same time:
+            // three periods of the slower one, instead of three periods of each
+            double delay = 3 * pressureSamplingPeriod;
+            if (inertial) {
+                delay = 3 * Math.max(pressureSamplingPeriod, accelerationSamplingPeriod);
+            }
+            pressureDecimator = newDecimator(pressureFactor, pressureSamplePeriod_us * 1e-6, delay);
+            accelerationDecimator = newDecimator(accelerationFactor, accelerationSamplePeriod_us * 1e-6, delay);
+        }
+
+        // Rotation is only needed to get vertical acceleration in inertial mode
+        double rotationPeriod = 0;
+
         if (inertial) {
-            if (smoother_lag > 0) {
-                FixedLagSmoother fls = new FixedLagSmoother(3, 2, 0, smoother_lag);
-                fls.setPeriod(accelerationSamplingPeriod);
-                fls.setSmoothingInput(1);
-                filter = fls;
+            if (usesControlInput()) {
+                filter = newFilter(2, 1, 1, 0);
             } else {
-                filter = new KalmanFilter(3, 2, 0);
-                filter.setPeriod(accelerationSamplingPeriod);
+                filter = newFilter(3, 2, 0, 1);
             }
 
-            rotationSensor = manager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
-            if (rotationSensor == null) {
-                rotationSensor = manager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+            rotationSamplingPeriod = source.getMinPeriod(SensorSource.ROTATION);
+            if (Double.isNaN(rotationSamplingPeriod)) {
+                return;
             }
-            rotationSamplingPeriod = rotationSensor.getMinDelay() * 1e-6;
             if (rotationSamplingPeriod < minRotationSamplingPeriod) {
                 rotationSamplingPeriod = minRotationSamplingPeriod;
             }
+            rotationPeriod = rotationSamplePeriod_us * 1e-6;
 
             filterPeriod = accelerationSamplingPeriod;
             filter.setPeriod(filterPeriod);
-            filter.setProcessNoise(filterPeriod, sigma_ivsi * sigma_ivsi);
 
             sigma_a = accelerometerNoiseDensity / Math.sqrt(accelerationSamplingPeriod * 2);
-            sigma_h = atmosphere.getStdH(0, sigma_p);
-            double[] r = { sigma_h, sigma_a };
-            filter.setMeasurementError(r);
-            filter.initCovariance(p_init);
-        } else {
-            if (smoother_lag > 0) {
-                FixedLagSmoother fls = new FixedLagSmoother(2, 1, 0, smoother_lag);
-                fls.setPeriod(pressureSamplingPeriod);
-                filter = fls;
+            sigma_h = pressureDomain ? sigma_p : atmosphere.getStdH(0, sigma_p);
+            if (usesControlInput()) {
+                // Accelerometer noise drives the prediction
+                filter.setProcessNoise(filterPeriod, sigma_a * sigma_a + sigma_ivsi * sigma_ivsi);
+                double[] r = { sigma_h };
+                filter.setMeasurementError(r);
             } else {
-                filter = new KalmanFilter(2, 1, 0);
-                filter.setPeriod(pressureSamplingPeriod);
+                filter.setProcessNoise(filterPeriod, sigma_ivsi * sigma_ivsi);
+                double[] r = { sigma_h, sigma_a };
+                filter.setMeasurementError(r);
             }
+            filter.initCovariance(p_init);
+        } else {
+            filter = newFilter(2, 1, 0, 0);
 
             filterPeriod = pressureSamplingPeriod;
+            filter.setPeriod(filterPeriod);
             filter.setProcessNoise(filterPeriod, sigma_vsi * sigma_vsi);
 
-            sigma_h = atmosphere.getStdH(0, sigma_p);
+            sigma_h = pressureDomain ? sigma_p : atmosphere.getStdH(0, sigma_p);
             double[] r = { sigma_h };
             filter.setMeasurementError(r);
             filter.initCovariance(p_init);
         }
 
-        mSensorThread.start();
-        mSensorHandler = new Handler(mSensorThread.getLooper());
-
-        if (rotationSensor != null) {
-            manager.registerListener(listenerR, rotationSensor, rotationSamplePeriod_us, mSensorHandler);
+        filter.setStatistics(statistics);
+        filter.setCovarianceInterval(covarianceInterval);
+        smoother = filter instanceof StateSmoother ? (StateSmoother) filter : null;
+        if (smoother != null) {
+            smoother.setSink(smoothedStateSink);
         }
+        linearAltitude = Double.NaN;
 
-        if (accelerometers != null) {
-            manager.registerListener(listenerA, accelerometers, accelerationSamplePeriod_us, mSensorHandler);
-        }
+        sampleCount = 0;
+        source.start(receiver, pressureSamplePeriod_us * 1e-6, accelerationSamplePeriod_us * 1e-6, rotationPeriod);
+    }
+
+    /*
+     *  Decimator with the group delay set in seconds; a factor of 1 only filters and delays
+     */
+    static Decimator newDecimator(int factor, double samplePeriod, double delay) {
+        int half = (int) Math.round(delay / samplePeriod);
+
+        return new Decimator(factor, 2 * half + 1);
+    }
 
-        if (pressureSensor != null) {
-            manager.registerListener(listenerP, pressureSensor, pressureSamplePeriod_us, mSensorHandler);
+    /*
+     *  Sensor samples per filter period, 1 without decimation or for a slow sensor
+     */
+    int getDecimation(double sensorPeriod, double filterPeriod) {
+        if (!decimation || sensorPeriod >= filterPeriod) {
+            return 1;
         }
 
+        // Rounded down, so that the sensor is not asked for more than it can do
+        return Math.max(1, (int) (filterPeriod / Math.max(sensorPeriod, minSensorSamplingPeriod) + 1e-6));
     }
 
     public void stop(Context context) {
-        SensorManager manager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        manager.unregisterListener(listenerP);
-        manager.unregisterListener(listenerA);
-        manager.unregisterListener(listenerR);
-        mSensorThread.quitSafely();
+        stop();
+    }
+
+    public void stop() {
+        if (source != null) {
+            source.stop();
+            source = null;
+        }
+
+        if (smoother != null) {
+            smoother.flush();
+        }
+    }
+
+    /**
+     * @return Number of sensor events processed since start
+     */
+    public long getSampleCount() {
+        return sampleCount;
     }
 
     public float getVerticalSpeed() {
-        return (float) filter.x.get(1);
+        return (float) filter.getState(1);
     }
 
     public float getAltitude() {
-        return (float) filter.x.get(0);
+        return (float) filter.getState(0);
+    }
+
+    /**
+     * @return Estimated vertical acceleration, NaN if the filter does not estimate it
+     */
+    public float getVerticalAcceleration() {
+        if (!inertial || usesControlInput()) {
+            return Float.NaN;
+        }
+
+        return (float) filter.getState(2);
     }
 
     public void setReferencePressure(float p0) {
-        double h = filter.x.get(0);
+        double h = filter.getState(0);
         double p = atmosphere.getPressure(h);
         atmosphere.setReferencePressure(p0);
         h = atmosphere.getAltitude(p);
-        filter.x.set(0, h);
+        filter.setState(0, h);
+        linearAltitude = Double.NaN;
     }
 
     public void setLatitude(double phi) {
@@ -0,0 +1,85 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Runs a Variometer over a recorded sensor log as fast as the CPU allows.
+ * Events go through the same listeners as live sensor data, so the estimates are identical.
+ */
+public class VariometerReplay {
+    Variometer variometer;
+    long samples = 0;
+    long elapsed = 0;
+
+    public VariometerReplay(Variometer v) {
+        variometer = v;
+    }
+
+    /**
+     * Replay all events of the source
+     * @return Number of sensor events processed
+     * @throws IOException If a log could not be read to the end
+     */
+    public long run(SensorSource source) throws IOException {
+        long t0 = System.nanoTime();
+
+        variometer.start(source);
+        elapsed = System.nanoTime() - t0;
+        samples = variometer.getSampleCount();
+        variometer.stop();
+
+        if (source instanceof FileSensorSource && ((FileSensorSource) source).getError() != null) {
+            throw ((FileSensorSource) source).getError();
+        }
+
+        return samples;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * @return Time spent in the last run, ns
+     */
+    public long getElapsedTime() {
+        return elapsed;
+    }
+
+    public double getSamplesPerSecond() {
+        if (elapsed == 0) {
+            return 0;
+        }
+
+        return samples * 1e9 / elapsed;
+    }
+
+    /**
+     * Usage: VariometerReplay log [inertial] [lag]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: VariometerReplay log [inertial] [lag]");
+            return;
+        }
+
+        boolean inertial = args.length < 2 || Boolean.parseBoolean(args[1]);
+        int lag = args.length < 3 ? 0 : Integer.parseInt(args[2]);
+
+        Variometer variometer = new Variometer(inertial, lag);
+        VariometerReplay replay = new VariometerReplay(variometer);
+        replay.run(new FileSensorSource(new File(args[0])));
+
+        System.out.println(String.format(Locale.US, "%d samples, %.3f s, %.0f samples/s",
+                replay.getSampleCount(), replay.getElapsedTime() * 1e-9, replay.getSamplesPerSecond()));
+        System.out.println(String.format(Locale.US, "h = %.2f m, v = %.3f m/s",
+                variometer.getAltitude(), variometer.getVerticalSpeed()));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Copyright (C) Ivan Gorinov, 2017
+ *  SPDX-License-Identifier: Apache-2.0
+ */
+
+package info.altimeter.variometer.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest state estimate of a variometer, published by the sensor thread
+ * and read by any number of consumers (indicators, audio, loggers).
+ *
+ * Publishing does not allocate. Readers do not lock: a sequence counter, odd while
+ * the state is being written, makes them retry until they get consistent values.
+ * The values are kept as raw bits in an atomic array, so every access is ordered
+ * with the sequence counter without separate fences.
+ */
+public class VariometerState {
+    /** Odd while the state is being written */
+    private volatile int sequence = 0;
+
+    private static final int TIMESTAMP = 0;
+    private static final int ALTITUDE = 1;
+    private static final int VERTICAL_SPEED = 2;
+    private static final int ACCELERATION = 3;
+    private static final int ALTITUDE_VARIANCE = 4;
+    private static final int VERTICAL_SPEED_VARIANCE = 5;
+    private static final int ACCELERATION_VARIANCE = 6;
+    private static final int VALUES = 7;
+
+    /** Timestamp and Double.doubleToRawLongBits() of the values, indexed as above */
+    private final AtomicLongArray values = new AtomicLongArray(VALUES);
+
+    public VariometerState() {
+        int i;
+
+        for (i = ALTITUDE; i < VALUES; i += 1) {
+            values.set(i, Double.doubleToRawLongBits(Double.NaN));
+        }
+    }
+
+    public static class Snapshot {
+        /** Sensor event time of the estimate, SystemClock.elapsedRealtimeNanos() base */
+        public long timestamp;
+        /** Altitude, m */
+        public double altitude;
+        /** Vertical speed, m/s */
+        public double verticalSpeed;
+        /** Vertical acceleration, m/s², NaN if not estimated */
+        public double acceleration;
+        public double altitudeVariance;
+        public double verticalSpeedVariance;
+        public double accelerationVariance;
+        /** Sequence number of the publication, see getSequence() */
+        public int sequence;
+    }
+
+    /**
+     * Publish a new estimate; writers are serialized, readers never wait for a lock
+     */
+    public synchronized void publish(long t, double h, double v, double a,
+                                     double var_h, double var_v, double var_a) {
+        sequence += 1;
+        values.set(TIMESTAMP, t);
+        setDouble(ALTITUDE, h);
+        setDouble(VERTICAL_SPEED, v);
+        setDouble(ACCELERATION, a);
+        setDouble(ALTITUDE_VARIANCE, var_h);
+        setDouble(VERTICAL_SPEED_VARIANCE, var_v);
+        setDouble(ACCELERATION_VARIANCE, var_a);
+        sequence += 1;
+    }
+
+    private void setDouble(int i, double x) {
+        values.set(i, Double.doubleToRawLongBits(x));
+    }
+
+    private double getDouble(int i) {
+        return Double.longBitsToDouble(values.get(i));
+    }
+
+    /*
+     *  Publish the state vector and the covariance diagonal of the filter
+     */
+    void publish(long t, StateEstimator f) {
+        double a = Double.NaN;
+        double var_a = Double.NaN;
+
+        if (f.getStateDim() > 2) {
+            a = f.getState(2);
+            var_a = f.getVariance(2);
+        }
+
+        publish(t, f.getState(0), f.getState(1), a, f.getVariance(0), f.getVariance(1), var_a);
+    }
+
+    /**
+     * Publish an unknown state, e.g. when the variometer is stopped
+     */
+    public void clear(long t) {
+        publish(t, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * @return Changes on every publication; compare with a previous value to skip reading an unchanged state
+     */
+    public int getSequence() {
+        return sequence & ~1;
+    }
+
+    public Snapshot newSnapshot() {
+        return new Snapshot();
+    }
+
+    /**
+     * Copy a consistent state into an existing snapshot
+     */
+    public void read(Snapshot s) {
+        int seq;
+
+        do {
+            while (((seq = sequence) & 1) != 0) {
+                Thread.yield();
+            }
+
+            s.timestamp = values.get(TIMESTAMP);
+            s.altitude = getDouble(ALTITUDE);
+            s.verticalSpeed = getDouble(VERTICAL_SPEED);
+            s.acceleration = getDouble(ACCELERATION);
+            s.altitudeVariance = getDouble(ALTITUDE_VARIANCE);
+            s.verticalSpeedVariance = getDouble(VERTICAL_SPEED_VARIANCE);
+            s.accelerationVariance = getDouble(ACCELERATION_VARIANCE);
+        } while (seq != sequence);
+
+        s.sequence = seq;
+    }
+}
@@ -13,17 +13,22 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.RadialGradient;
+import android.graphics.RecordingCanvas;
 import android.graphics.RectF;
+import android.graphics.RenderNode;
 import android.graphics.Shader;
 import android.graphics.Typeface;
 import android.graphics.Paint.Align;
 import android.graphics.Paint.FontMetrics;
 import android.graphics.Paint.Style;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.View;
 import android.view.WindowManager;
 
+import androidx.annotation.RequiresApi;
+
 import java.util.StringTokenizer;
 
 public class VerticalSpeedIndicator extends View
@@ -47,6 +52,25 @@ public class VerticalSpeedIndicator extends View
 	String unitName = "m/s";
 	Paint drawPaint = null;
 
+	// Objects reused to render the dial
+	Paint renderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	Path tailPath = new Path();
+	Path headPath = new Path();
+	Matrix renderMatrix = new Matrix();
+	FontMetrics fontMetrics = new FontMetrics();
+	RectF arcRect = new RectF();
+
+	/*
+	 *  With hardware acceleration (API 29+), the dial, the arrow and the failure cross
+	 *  are recorded into display lists once per size change; only the arrow rotation
+	 *  property changes from frame to frame. The nodes are only created and used on API 29+.
+	 */
+	boolean hardwareRendering = true;
+	boolean nodesValid = false;
+	RenderNode plateNode = null;
+	RenderNode arrowNode = null;
+	RenderNode crossNode = null;
+
 	public VerticalSpeedIndicator(Context context) {
 		this(context, null);
 	}
@@ -116,44 +140,123 @@ public class VerticalSpeedIndicator extends View
 	@Override
 	protected void onDraw(Canvas canvas) {
 		Paint paint = drawPaint;
-		if (null == paint) {
+		if (null == paint || null == dialPlate) {
 			return;
 		}
-		paint.setFilterBitmap(true);
 
 		float cx = getWidth() / 2f;
 		float cy = getHeight() / 2f;
 		float indication = vspeed * unitR;
+		float angle = indication * 180f * scaleLimitR;
+
+		if (hardwareRendering && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated()) {
+			drawRenderNodes(canvas, cx, cy, angle);
+			return;
+		}
 
+		// The dial is drawn without scaling, filtering is only needed for the rotated arrow
+		paint.setFilterBitmap(false);
 		canvas.drawBitmap(dialPlate, cx - dialPlate.getWidth() / 2f, cy - dialPlate.getHeight() / 2f, paint);
 
 		if (Float.isNaN(vspeed)) {
-			paint.setColor(Color.RED);
-			paint.setStrokeWidth(8);
-			int rx = Math.round(dialPlate.getWidth() * 0.375f);
-			int ry = Math.round(dialPlate.getHeight() * 0.375f);
-			canvas.drawLine(cx - rx, cy - ry, cx + rx, cy + ry, paint);
-			canvas.drawLine(cx - rx, cy + ry, cx + rx, cy - ry, paint);
+			drawCross(canvas, cx, cy, paint);
 		} else {
+			paint.setFilterBitmap(true);
 			canvas.save();
-			canvas.rotate((float) (indication * 180f * scaleLimitR), cx, cy);
+			canvas.rotate(angle, cx, cy);
 			canvas.drawBitmap(dialArrow, cx - dialArrow.getWidth() / 2f, cy - dialArrow.getHeight() / 2f, paint);
 			canvas.restore();
 		}
 	}
 
+	void drawCross(Canvas canvas, float cx, float cy, Paint paint) {
+		paint.setColor(Color.RED);
+		paint.setStrokeWidth(8);
+		int rx = Math.round(dialPlate.getWidth() * 0.375f);
+		int ry = Math.round(dialPlate.getHeight() * 0.375f);
+		canvas.drawLine(cx - rx, cy - ry, cx + rx, cy + ry, paint);
+		canvas.drawLine(cx - rx, cy + ry, cx + rx, cy - ry, paint);
+	}
+
+	@RequiresApi(api = Build.VERSION_CODES.Q)
+	void recordRenderNodes(float cx, float cy) {
+		RecordingCanvas rc;
+		Paint paint = drawPaint;
+
+		if (plateNode == null) {
+			plateNode = new RenderNode("VSI dial");
+			arrowNode = new RenderNode("VSI arrow");
+			crossNode = new RenderNode("VSI failure");
+		}
+
+		plateNode.setPosition(0, 0, getWidth(), getHeight());
+		rc = plateNode.beginRecording();
+		paint.setFilterBitmap(false);
+		rc.drawBitmap(dialPlate, cx - dialPlate.getWidth() / 2f, cy - dialPlate.getHeight() / 2f, paint);
+		plateNode.endRecording();
+
+		int w = dialArrow.getWidth();
+		int h = dialArrow.getHeight();
+		int left = Math.round(cx - w / 2f);
+		int top = Math.round(cy - h / 2f);
+		arrowNode.setPosition(left, top, left + w, top + h);
+		arrowNode.setPivotX(w / 2f);
+		arrowNode.setPivotY(h / 2f);
+		rc = arrowNode.beginRecording();
+		paint.setFilterBitmap(true);
+		rc.drawBitmap(dialArrow, 0, 0, paint);
+		arrowNode.endRecording();
+
+		crossNode.setPosition(0, 0, getWidth(), getHeight());
+		rc = crossNode.beginRecording();
+		drawCross(rc, cx, cy, paint);
+		crossNode.endRecording();
+
+		nodesValid = true;
+	}
+
+	@RequiresApi(api = Build.VERSION_CODES.Q)
+	void drawRenderNodes(Canvas canvas, float cx, float cy, float angle) {
+		if (!nodesValid) {
+			recordRenderNodes(cx, cy);
+		}
+
+		canvas.drawRenderNode(plateNode);
+		if (Float.isNaN(angle)) {
+			canvas.drawRenderNode(crossNode);
+		} else {
+			arrowNode.setRotationZ(angle);
+			canvas.drawRenderNode(arrowNode);
+		}
+	}
+
+	@RequiresApi(api = Build.VERSION_CODES.Q)
+	void discardRenderNodes() {
+		plateNode.discardDisplayList();
+		arrowNode.discardDisplayList();
+		crossNode.discardDisplayList();
+	}
+
+	/**
+	 * Use display lists when the view is hardware accelerated (default),
+	 * or always draw bitmaps through the canvas
+	 */
+	public void setHardwareRendering(boolean enable) {
+		hardwareRendering = enable;
+		invalidate();
+	}
+
 	@Override
-	protected void onSizeChanged(int width, int height, int w0, int h0) {
-		Canvas canvas = null;
-		Paint paint = null;
-		Path tailPath, headPath;
-		Matrix mmm = new Matrix();
-		FontMetrics metrics;
-		int cx, cy;
-		float textMiddle;
-		float tx, ty;
-		int i;
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && plateNode != null) {
+			discardRenderNodes();
+		}
+		nodesValid = false;
+	}
 
+	@Override
+	protected void onSizeChanged(int width, int height, int w0, int h0) {
 		if (null == drawPaint) {
 			drawPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
 		}
@@ -167,8 +270,6 @@ public class VerticalSpeedIndicator extends View
 		} else {
 			side = height;
 		}
-		cx = side / 2;
-		cy = side / 2;
 
 		if (side == 320) {
 			scale = 1f;
@@ -176,19 +277,43 @@ public class VerticalSpeedIndicator extends View
 			scale = side / 320f;
 		}
 
-		if (dialPlate != null) {
-			dialPlate.recycle();
+		nodesValid = false;
+
+		String climb = getResources().getString(R.string.climb);
+		String descent = getResources().getString(R.string.descent);
+		String key = DialCache.plateKey(side, scaleLimit, unitName, typeName, climb, descent);
+
+		// Bitmaps in the cache may be shared with other views, they are never recycled or redrawn
+		dialPlate = DialCache.get(key);
+		if (dialPlate == null) {
+			dialPlate = Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
+			renderPlate(dialPlate, climb, descent);
+			DialCache.put(key, dialPlate);
 		}
 
-		if (dialArrow != null) {
-			dialArrow.recycle();
+		key = DialCache.arrowKey(side);
+		dialArrow = DialCache.get(key);
+		if (dialArrow == null) {
+			dialArrow = Bitmap.createBitmap(side, side / 4, Bitmap.Config.ARGB_8888);
+			renderArrow(dialArrow);
+			DialCache.put(key, dialArrow);
 		}
+	}
 
-		dialPlate = Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
-		dialArrow = Bitmap.createBitmap(side, side / 4, Bitmap.Config.ARGB_8888);
+	void renderPlate(Bitmap bitmap, String climb, String descent) {
+		Canvas canvas = new Canvas(bitmap);
+		Paint paint = renderPaint;
+		Matrix mmm = renderMatrix;
+		FontMetrics metrics = fontMetrics;
+		int cx = side / 2;
+		int cy = side / 2;
+		float textMiddle;
+		float tx, ty;
+		int i;
 
-		canvas = new Canvas(dialPlate);
-		paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mmm.reset();
+		paint.reset();
+		paint.setAntiAlias(true);
 		paint.setStyle(Style.FILL_AND_STROKE);
 /*
 		paint.setColor(Color.BLACK);
@@ -232,7 +357,6 @@ public class VerticalSpeedIndicator extends View
 
 		paint.setTypeface(Typeface.MONOSPACE);
 		paint.setTextSize(24);
-		metrics = new FontMetrics();
 		paint.getFontMetrics(metrics);
 		textMiddle = (metrics.ascent + metrics.descent) / 2;
 
@@ -267,8 +391,6 @@ public class VerticalSpeedIndicator extends View
 			canvas.drawText(Integer.toString(Math.abs(i)), tx, cy + ty - textMiddle, paint);
 		}
 
-		String text;
-
 		paint.setTypeface(Typeface.SANS_SERIF);
 		ty = cy + 48;
 		paint.setTextSize(16);
@@ -289,10 +411,8 @@ public class VerticalSpeedIndicator extends View
 		paint.setTextSize(12);
 		paint.getFontMetrics(metrics);
 		textMiddle = (metrics.ascent + metrics.descent) / 2;
-		text = getResources().getString(R.string.climb);
-		canvas.drawText(text, cx - 48, cy - 24 - textMiddle, paint);
-		text = getResources().getString(R.string.descent);
-		canvas.drawText(text, cx - 48, cy + 24 - textMiddle, paint);
+		canvas.drawText(climb, cx - 48, cy - 24 - textMiddle, paint);
+		canvas.drawText(descent, cx - 48, cy + 24 - textMiddle, paint);
 		canvas.drawLine(cx - 32, cy, cx - 64, cy, paint);
 
 		/*
@@ -318,15 +438,19 @@ public class VerticalSpeedIndicator extends View
 				}
 			}
 		}
+	}
+
+	void renderArrow(Bitmap bitmap) {
+		Paint paint = renderPaint;
+		Matrix mmm = renderMatrix;
+		Canvas canvas;
 
 		/*
 		 *  Prepare hand headPath
 		 */
 
-
-		tailPath = new Path();
-		headPath = new Path();
-		paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		paint.reset();
+		paint.setAntiAlias(true);
 
 		headPath.reset();
 		headPath.moveTo(35, 40);
@@ -342,15 +466,17 @@ public class VerticalSpeedIndicator extends View
         tailPath.lineTo(55, 35);
         tailPath.lineTo(140, 35);
         tailPath.lineTo(200, 35);
-        tailPath.arcTo(new RectF(200, 30, 220, 50), -150, 300, false);
+        arcRect.set(200, 30, 220, 50);
+        tailPath.arcTo(arcRect, -150, 300, false);
         tailPath.lineTo(200, 45);
         tailPath.lineTo(140, 45);
         tailPath.lineTo(55, 45);
         tailPath.lineTo(35, 40);
         tailPath.close();
 
-        canvas = new Canvas(dialArrow);
+        canvas = new Canvas(bitmap);
 
+		mmm.reset();
 		if (scale != 1) {
 			mmm.setScale(scale, scale, 0, 0);
 		}
@@ -0,0 +1,58 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecimatorTest {
+
+    /**
+     * Decimate a tone sampled at 200 Hz to 50 Hz
+     * @return Maximum output amplitude after the filter has settled
+     */
+    static double amplitude(double frequency) {
+        Decimator d = new Decimator(4);
+        double max = 0;
+        int i, count = 0;
+
+        for (i = 0; i < 2000; i += 1) {
+            if (d.add(Math.cos(2 * Math.PI * frequency * i / 200.0))) {
+                count += 1;
+                if (i > 200) {
+                    max = Math.max(max, Math.abs(d.getOutput()));
+                }
+            }
+        }
+        assertEquals(500, count);
+
+        return max;
+    }
+
+    @Test
+    public void ConstantTest() {
+        Decimator d = new Decimator(4);
+        int i, count = 0;
+
+        // No startup transient
+        for (i = 0; i < 100; i += 1) {
+            if (d.add(1013.25)) {
+                assertEquals(1013.25, d.getOutput(), 1e-9);
+                count += 1;
+            }
+        }
+
+        assertEquals(25, count);
+        assertEquals(12, d.getDelay(), 0);
+    }
+
+    @Test
+    public void AliasingTest() {
+        // Vertical motion passes
+        assertEquals(1, amplitude(1), 0.01);
+
+        // A 50 Hz vibration would alias to zero frequency when sampled at 50 Hz
+        assertTrue(amplitude(50) < 1e-3);
+        assertTrue(amplitude(40) < 1e-3);
+    }
+}
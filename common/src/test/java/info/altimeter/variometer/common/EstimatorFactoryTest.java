@@ -0,0 +1,50 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EstimatorFactoryTest {
+
+    /** Fast, but not a Kalman filter */
+    static final EstimatorFactory.Engine COMPLEMENTARY = new EstimatorFactory.Engine() {
+        @Override
+        public String getName() {
+            return "complementary";
+        }
+
+        @Override
+        public StateEstimator create(int state, int input, int controls, int lag, int smoothingInput) {
+            return new ComplementaryFilter(2);
+        }
+    };
+
+    @Test
+    public void CreateTest() {
+        EstimatorFactory factory = new EstimatorFactory();
+
+        assertTrue(factory.create(3, 2, 0, 0, 1) instanceof KalmanFilter);
+        assertTrue(factory.create(3, 2, 0, 10, 1) instanceof FixedLagSmoother);
+
+        factory.select(factory.getEngine("float"));
+        assertTrue(factory.create(2, 1, 1, 0, 0) instanceof FloatKalmanFilter);
+        assertTrue(factory.create(3, 2, 0, 10, 1) instanceof FloatFixedLagSmoother);
+        assertEquals(null, factory.getEngine("none"));
+    }
+
+    @Test
+    public void ProbeTest() {
+        EstimatorFactory factory = new EstimatorFactory();
+        factory.add(COMPLEMENTARY);
+
+        EstimatorFactory.Engine engine = factory.probe(5);
+        double[] times = factory.getProbeTimes();
+
+        // The fastest engine with the same estimates as the double one
+        assertTrue(engine == EstimatorFactory.DOUBLE || engine == EstimatorFactory.FLOAT);
+        assertTrue(engine == factory.getSelected());
+        assertTrue(times[0] > 0 && times[1] > 0);
+        assertTrue(Double.isNaN(times[2]));
+    }
+}
@@ -0,0 +1,95 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExportRingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void RingTest() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ExportRing.size(4));
+        ExportRing.Writer writer = new ExportRing.Writer(buffer);
+        ExportRing.Reader reader = new ExportRing.Reader(buffer);
+        ExportRing.Record r = new ExportRing.Record();
+        int i;
+
+        assertEquals(4, reader.getCapacity());
+        assertFalse(reader.readLatest(r));
+
+        for (i = 0; i < 6; i += 1) {
+            writer.write(1000L * i, SensorSource.PRESSURE, 2, 100 + i, i, Double.NaN, 1, 0.5, Double.NaN);
+        }
+
+        assertEquals(6, reader.getHead());
+        assertTrue(reader.readLatest(r));
+        assertEquals(5, r.index);
+        assertEquals(5000, r.timestamp);
+        assertEquals(105, r.altitude, 0);
+        assertEquals(5, r.verticalSpeed, 0);
+        assertTrue(Double.isNaN(r.acceleration));
+
+        // Records 0 and 1 have been overwritten, 6 is not written yet
+        assertFalse(reader.read(1, r));
+        assertTrue(reader.read(2, r));
+        assertEquals(102, r.altitude, 0);
+        assertFalse(reader.read(6, r));
+    }
+
+    @Test(expected = IOException.class)
+    public void InvalidBufferTest() throws IOException {
+        new ExportRing.Reader(ByteBuffer.allocate(ExportRing.size(4)));
+    }
+
+    @Test
+    public void SharedFileTest() throws IOException, InterruptedException {
+        File file = folder.newFile("state");
+        final ExportRing.Writer writer = new ExportRing.Writer(ExportRing.map(file, 16));
+        final int n = 100000;
+
+        // A separate mapping of the same file, as another process would have
+        ExportRing.Reader reader = new ExportRing.Reader(ExportRing.mapReadOnly(file));
+        ExportRing.Record r = new ExportRing.Record();
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                int i;
+
+                for (i = 0; i < n; i += 1) {
+                    writer.write(i, SensorSource.ACCELERATION, 3, i, i, i, i, i, i);
+                }
+            }
+        };
+        thread.start();
+
+        // Every record read is complete and in order
+        long last = -1;
+        do {
+            if (reader.readLatest(r)) {
+                assertTrue(r.index >= last);
+                assertEquals(r.index, r.timestamp);
+                assertEquals(r.timestamp, r.altitude, 0);
+                assertEquals(r.timestamp, r.verticalSpeed, 0);
+                assertEquals(r.timestamp, r.accelerationVariance, 0);
+                last = r.index;
+            }
+        } while (thread.isAlive());
+        thread.join();
+
+        assertTrue(reader.readLatest(r));
+        assertEquals(n - 1, r.index);
+        assertEquals(3, r.stateDim);
+    }
+}
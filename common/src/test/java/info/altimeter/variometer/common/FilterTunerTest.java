@@ -0,0 +1,45 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilterTunerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void SweepTest() throws IOException {
+        File dir = folder.newFolder("flights");
+        new SimulatedFlight().write(new File(dir, "1.log"), 40, 1);
+        new SimulatedFlight().write(new File(dir, "2.log"), 40, 2);
+
+        FilterTuner tuner = new FilterTuner(true, 4);
+        assertEquals(2, tuner.loadFlights(dir));
+
+        FilterTuner.Config center = new FilterTuner.Config(0.0039, 0.06, 0.002942, 0);
+        FilterTuner.Config[] configs = FilterTuner.grid(center, 10, 2, new int[] { 0, 5 });
+        assertEquals(16, configs.length);
+
+        tuner.sweep(configs);
+        for (int i = 0; i < configs.length; i += 1) {
+            assertTrue(configs[i].updates > 0);
+            if (i > 0) {
+                assertTrue(configs[i - 1].score <= configs[i].score);
+            }
+        }
+
+        // Same configuration gives the same score on any thread
+        FilterTuner.Config c = new FilterTuner.Config(configs[0].sigma_process,
+                configs[0].sigma_p, configs[0].sigma_a, configs[0].lag);
+        tuner.evaluate(c);
+        assertEquals(configs[0].score, c.score, 0);
+    }
+}
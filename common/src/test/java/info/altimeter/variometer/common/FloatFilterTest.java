@@ -0,0 +1,83 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FloatFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Altitude and vertical speed after every filter update */
+    static class Recorder implements Variometer.StateListener {
+        final double[] h;
+        final double[] v;
+        int count = 0;
+
+        Recorder(int size) {
+            h = new double[size];
+            v = new double[size];
+        }
+
+        @Override
+        public void onStateUpdate(Variometer.StateUpdate u) {
+            h[count] = u.x[0];
+            v[count] = u.x[1];
+            count += 1;
+        }
+    }
+
+    static Recorder replay(File log, boolean ivsi, int lag, boolean single, int size) throws IOException {
+        Variometer variometer = new Variometer(ivsi, lag, single);
+        Recorder recorder = new Recorder(size);
+
+        variometer.subscribe(recorder, 0, false);
+        new VariometerReplay(variometer).run(new FileSensorSource(log));
+
+        return recorder;
+    }
+
+    static void assertClose(File log, boolean ivsi, int lag, int size) throws IOException {
+        Recorder d = replay(log, ivsi, lag, false, size);
+        Recorder f = replay(log, ivsi, lag, true, size);
+        double maxH = 0, maxV = 0;
+        int i;
+
+        assertEquals(d.count, f.count);
+        assertTrue(d.count > 0);
+
+        for (i = 0; i < d.count; i += 1) {
+            maxH = Math.max(maxH, Math.abs(d.h[i] - f.h[i]));
+            maxV = Math.max(maxV, Math.abs(d.v[i] - f.v[i]));
+        }
+
+        // Rounding errors stay bounded over the whole flight
+        assertEquals(0, maxH, 0.01);
+        assertEquals(0, maxV, 0.002);
+    }
+
+    @Test
+    public void LongReplayTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        // One hour
+        new SimulatedFlight().write(log, 3600, 6);
+
+        assertClose(log, true, 0, 400000);
+        assertClose(log, false, 0, 100000);
+    }
+
+    @Test
+    public void SmootherReplayTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        new SimulatedFlight().write(log, 600, 7);
+
+        assertClose(log, true, 10, 100000);
+    }
+}
@@ -0,0 +1,78 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IgcWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void RecordTest() {
+        byte[] r = new byte[IgcWriter.RECORD_LENGTH];
+
+        // 12:34:56 UTC
+        IgcWriter.formatRecord(r, (86400L * 1000 + 12 * 3600 + 34 * 60 + 56) * 1000000000L, 1234.4, -1.26);
+        assertEquals("B1234560000000N00000000EV0123400000-013\r\n", new String(r, StandardCharsets.US_ASCII));
+
+        IgcWriter.formatRecord(r, 0, -12, 2.5);
+        assertEquals("B0000000000000N00000000EV-0012000000025\r\n", new String(r, StandardCharsets.US_ASCII));
+    }
+
+    static void write(IgcWriter w, int from, int to) {
+        Variometer.StateUpdate u = new Variometer.StateUpdate();
+        int i;
+
+        u.stateDim = 2;
+        for (i = from; i < to; i += 1) {
+            u.timestamp = i * 1000000000L;
+            u.x[0] = 100 + i;
+            u.x[1] = 0.5;
+            w.onStateUpdate(u);
+        }
+    }
+
+    @Test
+    public void AppendTest() throws IOException {
+        File file = new File(folder.getRoot(), "flight.igc");
+
+        IgcWriter w = new IgcWriter(file, 0);
+        write(w, 0, 10);
+        w.close();
+        assertEquals(0, w.getDroppedRecords());
+
+        // A restarted service continues the same file, without another header
+        w = new IgcWriter(file, 0);
+        write(w, 10, 20);
+        w.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        int headers = 0, records = 0;
+        for (String line : lines) {
+            if (line.startsWith("A")) {
+                headers += 1;
+            }
+            if (line.startsWith("B")) {
+                assertEquals(39, line.length());
+                assertEquals(100 + records, Integer.parseInt(line.substring(25, 30)));
+                assertEquals("0005", line.substring(35, 39));
+                records += 1;
+            }
+        }
+
+        assertEquals(1, headers);
+        assertEquals(20, records);
+        assertTrue(lines.contains("I013639VAT"));
+    }
+}
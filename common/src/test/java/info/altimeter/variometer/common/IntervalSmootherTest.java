@@ -0,0 +1,125 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IntervalSmootherTest {
+    static final double DT = 0.02;
+    static final double SIGMA_H = 0.5;
+    static final double SIGMA_A = 0.25;
+
+    static final IntervalSmoother.Model MODEL = new IntervalSmoother.Model() {
+        @Override
+        public KalmanFilter newFilter() {
+            KalmanFilter filter = new KalmanFilter(3, 2, 0);
+            filter.setPeriod(DT);
+            filter.setProcessNoise(DT, 0.01);
+            filter.setMeasurementError(new double[] { SIGMA_H, SIGMA_A });
+            // Unknown altitude and speed, the chunks may start anywhere
+            filter.initCovariance(new double[] { 1000, 10, 3 });
+            return filter;
+        }
+    };
+
+    double[] v_sim;
+
+    /**
+     * Altitude at every other step, acceleration at every step,
+     * with the acceleration profile of SimulatedFlight
+     */
+    double[] measurements(int n) {
+        Random random = new Random(1);
+        double[] z = new double[n * 2];
+        double a = 0, v = 0, h = 500;
+        int i;
+
+        v_sim = new double[n];
+        for (i = 0; i < n; i += 1) {
+            v += a * DT;
+            h += v * DT + a * DT * DT / 2;
+            v_sim[i] = v;
+
+            z[i * 2] = (i & 1) != 0 ? h + random.nextGaussian() * SIGMA_H : Double.NaN;
+            z[i * 2 + 1] = a + random.nextGaussian() * SIGMA_A;
+
+            a = SimulatedFlight.acceleration(i * DT);
+        }
+
+        return z;
+    }
+
+    @Test
+    public void SerialTest() {
+        int n = (int) Math.round(200 / DT);
+        double[] z = measurements(n);
+        double[] xs = new double[n * 3];
+        KalmanFilter filter = MODEL.newFilter();
+        double sumFiltered = 0, sumSmoothed = 0;
+        int i;
+
+        new IntervalSmoother(MODEL).smooth(z, xs);
+
+        for (i = 0; i < n; i += 1) {
+            filter.filterPredict(null);
+            if (!Double.isNaN(z[i * 2])) {
+                filter.filterUpdateSequential(0, z[i * 2]);
+            }
+            filter.filterUpdateSequential(1, z[i * 2 + 1]);
+
+            double e = filter.getState(1) - v_sim[i];
+            sumFiltered += e * e;
+            e = xs[i * 3 + 1] - v_sim[i];
+            sumSmoothed += e * e;
+        }
+
+        // The last step has no later samples
+        assertEquals(filter.getState(1), xs[(n - 1) * 3 + 1], 1e-9);
+        assertTrue(sumSmoothed < 0.5 * sumFiltered);
+    }
+
+    /**
+     * @return Largest differences of altitude and speed between chunked and serial results
+     */
+    static double[] chunkedDifference(int n, int length, int overlap) {
+        IntervalSmootherTest flight = new IntervalSmootherTest();
+        double[] z = flight.measurements(n);
+        double[] serial = new double[n * 3];
+        double[] chunked = new double[n * 3];
+        IntervalSmoother smoother = new IntervalSmoother(MODEL);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        double[] max = new double[2];
+        int i;
+
+        smoother.smooth(z, serial);
+        smoother.setChunks(length, overlap);
+        smoother.smooth(z, chunked, pool);
+        pool.shutdown();
+
+        for (i = 0; i < n; i += 1) {
+            max[0] = Math.max(max[0], Math.abs(chunked[i * 3] - serial[i * 3]));
+            max[1] = Math.max(max[1], Math.abs(chunked[i * 3 + 1] - serial[i * 3 + 1]));
+        }
+
+        return max;
+    }
+
+    @Test
+    public void ChunkedTest() {
+        // A short last chunk, a multiple of the chunk length,
+        // and a last chunk that ends within half the overlap of its length
+        int[] steps = { 10123, 10000, 9900 };
+
+        for (int n : steps) {
+            double[] max = chunkedDifference(n, 1000, 500);
+
+            // 10 s of overlap, far below the measurement noise
+            assertTrue(max[0] < 0.005);
+            assertTrue(max[1] < 0.002);
+        }
+    }
+}
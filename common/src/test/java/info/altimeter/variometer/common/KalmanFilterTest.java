@@ -5,6 +5,8 @@ import org.junit.Test;
 import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class KalmanFilterTest {
 
@@ -157,4 +159,162 @@ public class KalmanFilterTest {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void ControlInputTest() {
+        KalmanFilter filter = new KalmanFilter(2, 1, 1);
+        double dt = 0.02;
+        double[] u = new double[1];
+        double a, v, x;
+        int i;
+
+        filter.setPeriod(dt);
+        filter.setProcessNoise(dt, 0.01);
+        filter.initCovariance(p_init);
+
+        a = 0;
+        v = 0;
+        x = 0;
+
+        // Without measurements, the state follows the acceleration exactly
+        for (i = 0; i < 1000; i += 1) {
+            a = SimulatedFlight.acceleration(i * dt);
+            x += v * dt + a * dt * dt / 2;
+            v += a * dt;
+
+            u[0] = a;
+            filter.filterPredict(u);
+            assertEquals(x, filter.x.get(0), 1e-9);
+            assertEquals(v, filter.x.get(1), 1e-9);
+        }
+
+        // Process noise of the acceleration input accumulates in the speed variance
+        assertEquals(p_init[1] * p_init[1] + 1000 * dt * dt * 0.01, filter.P.get(1, 1), 1e-9);
+    }
+
+    @Test
+    public void InnovationStatisticsTest() {
+        KalmanFilter kf1 = new KalmanFilter(3, 2, 0);
+        KalmanFilter kf2 = new KalmanFilter(3, 2, 0);
+        InnovationStatistics stats1 = new InnovationStatistics(2);
+        InnovationStatistics stats2 = new InnovationStatistics(2);
+        Random random = new Random(1);
+
+        double dt = 0.02;
+        int n = (int) Math.round(200 / dt);
+        double[] input = new double[2];
+        double sigma_a = 0.25;
+        double sigma_x = 0.5;
+        int i;
+
+        kf1.setPeriod(dt);
+        kf2.setPeriod(dt);
+        kf1.setProcessNoise(dt, 0.01);
+        kf2.setProcessNoise(dt, 0.01);
+        double[] r = { sigma_x, sigma_a };
+        kf1.setMeasurementError(r);
+        kf2.setMeasurementError(r);
+        kf1.initCovariance(p_init);
+        kf2.initCovariance(p_init);
+        kf1.setStatistics(stats1);
+        kf2.setStatistics(stats2);
+
+        // Stationary object, measured with the noise the filter expects
+        for (i = 0; i < n; i += 1) {
+            input[0] = random.nextGaussian() * sigma_x;
+            input[1] = random.nextGaussian() * sigma_a;
+
+            kf1.filterPredict(null);
+            kf1.filterUpdate(input);
+
+            kf2.filterPredict(null);
+            kf2.filterUpdateSequential(0, input[0]);
+            kf2.filterUpdateSequential(1, input[1]);
+        }
+
+        InnovationStatistics.Snapshot s1 = stats1.newSnapshot();
+        InnovationStatistics.Snapshot s2 = stats2.newSnapshot();
+        stats1.snapshot(s1);
+        stats2.snapshot(s2);
+
+        assertEquals(n, s1.count[0]);
+        assertEquals(n, s2.count[1]);
+        assertEquals(1.0, s1.meanNis[0], 0.1);
+        assertEquals(1.0, s2.meanNis[0], 0.1);
+        assertEquals(0.0, s2.meanResidual[0], 0.05);
+
+        stats2.reset();
+        kf2.filterPredict(null);
+        kf2.filterUpdateSequential(0, 0);
+        stats2.snapshot(s2);
+        assertEquals(1, s2.count[0]);
+        assertEquals(0, s2.count[1]);
+    }
+
+    @Test
+    public void SmootherTest() {
+        int lag = 50;
+        FixedLagSmoother smoother = new FixedLagSmoother(3, 2, 0, lag);
+        KalmanFilter filter = new KalmanFilter(3, 2, 0);
+        Random random = new Random(1);
+        double dt = 0.02;
+        int n = 3000;
+        double[] v_sim = new double[n];
+        double[] v_est = new double[n];
+        double[] state = new double[3];
+        double sumFiltered = 0, sumSmoothed = 0;
+        double a, v, x;
+        int i;
+
+        // Any lag, any state size
+        double[] x0 = { 1, 2, 3 };
+        smoother.setState(x0);
+        smoother.getState(state);
+        assertArrayEquals(x0, state, 0);
+        smoother.setState(new double[3]);
+
+        // Altitude samples also correct the speed of past steps
+        smoother.setSmoothingInput(0);
+
+        for (KalmanFilter f : new KalmanFilter[] { filter, smoother }) {
+            f.setPeriod(dt);
+            f.setProcessNoise(dt, 0.01);
+            f.setMeasurementError(new double[] { 0.5, 0.25 });
+            f.initCovariance(p_init);
+        }
+
+        a = 0;
+        v = 0;
+        x = 0;
+
+        for (i = 0; i < n; i += 1) {
+            a = SimulatedFlight.acceleration(i * dt);
+            x += v * dt + a * dt * dt / 2;
+            v += a * dt;
+            v_sim[i] = v;
+
+            double z_x = x + random.nextGaussian() * 0.5;
+            double z_a = a + random.nextGaussian() * 0.25;
+
+            filter.filterPredict(null);
+            filter.filterUpdateSequential(0, z_x);
+            filter.filterUpdateSequential(1, z_a);
+            v_est[i] = filter.x.get(1);
+
+            smoother.filterPredict(null);
+            smoother.filterUpdateSequential(0, z_x);
+            smoother.filterUpdateSequential(1, z_a);
+            smoother.getState(state);
+
+            // The oldest state in the window, lag - 1 steps ago
+            if (i >= lag - 1) {
+                double ef = v_est[i - lag + 1] - v_sim[i - lag + 1];
+                double es = state[1] - v_sim[i - lag + 1];
+                sumFiltered += ef * ef;
+                sumSmoothed += es * es;
+            }
+        }
+
+        assertTrue(sumSmoothed < 0.7 * sumFiltered);
+    }
+}
@@ -0,0 +1,41 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void BucketTest() {
+        long v;
+
+        // Every value falls into the bucket whose range contains it
+        for (v = 0; v < 100000; v += 7) {
+            int i = LatencyHistogram.bucketIndex(v);
+            assertTrue(LatencyHistogram.bucketValue(i) <= v);
+            assertTrue(LatencyHistogram.bucketValue(i + 1) > v);
+        }
+
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void PercentileTest() {
+        LatencyHistogram h = new LatencyHistogram("test");
+        int i;
+
+        for (i = 1; i <= 1000; i += 1) {
+            h.record(i * 1000L);
+        }
+
+        assertEquals(1000, h.getCount());
+        assertEquals(500500.0, h.getMean(), 1e-6);
+
+        // 12.5% bucket resolution
+        assertEquals(500000, h.getPercentile(0.5), 500000 / 8);
+        assertEquals(990000, h.getPercentile(0.99), 990000 / 8);
+        assertEquals(1000000, h.getPercentile(1.0));
+    }
+}
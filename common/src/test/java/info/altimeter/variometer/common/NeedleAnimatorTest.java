@@ -0,0 +1,57 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NeedleAnimatorTest {
+
+    static final long UPDATE = 40000000L;   // 25 Hz filter updates
+    static final long FRAME = 8333333L;     // 120 Hz display
+
+    @Test
+    public void ExtrapolationTest() {
+        NeedleAnimator animator = new NeedleAnimator();
+        float a = 1.5f;
+        long t, next = 0;
+        float last = Float.NaN;
+
+        // Constant acceleration is followed exactly between updates
+        for (t = 0; t < 2000000000L; t += FRAME) {
+            while (next <= t) {
+                animator.add(next, a * next * 1e-9f, a);
+                next += UPDATE;
+            }
+            float v = animator.getValue(t);
+            assertEquals(a * t * 1e-9f, v, 1e-4f);
+            if (!Float.isNaN(last)) {
+                assertTrue(v >= last);
+            }
+            last = v;
+        }
+    }
+
+    @Test
+    public void InterpolationTest() {
+        NeedleAnimator animator = new NeedleAnimator();
+        long t, next = 0;
+        float last = 0;
+        int k = 0;
+
+        // Step from 0 to 1 m/s without acceleration estimate: no jumps larger than a frame share
+        for (t = 0; t < 1000000000L; t += FRAME) {
+            while (next <= t) {
+                animator.add(next, k < 10 ? 0 : 1, Float.NaN);
+                next += UPDATE;
+                k += 1;
+            }
+            float v = animator.getValue(t);
+            assertTrue(v - last <= (float) FRAME / UPDATE + 1e-3f);
+            assertTrue(v >= last);
+            last = v;
+        }
+
+        assertEquals(1, last, 1e-6f);
+    }
+}
@@ -0,0 +1,118 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NmeaOutputTest {
+
+    static String format(ByteBuffer b) {
+        b.flip();
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        b.clear();
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    static void assertChecksum(String line) {
+        int star = line.indexOf('*');
+        int checksum = 0;
+        int i;
+
+        assertTrue(line.startsWith("$"));
+        for (i = 1; i < star; i += 1) {
+            checksum ^= line.charAt(i);
+        }
+        assertEquals(checksum, Integer.parseInt(line.substring(star + 1, star + 3), 16));
+    }
+
+    @Test
+    public void FormatTest() {
+        NmeaFormatter f = new NmeaFormatter();
+        ByteBuffer b = ByteBuffer.allocate(256);
+
+        f.putFixed(b, -0.004, 2);
+        f.comma(b);
+        f.putFixed(b, -1.005, 1);
+        f.comma(b);
+        f.putFixed(b, 12.5, 0);
+        f.comma(b);
+        f.putFixed(b, Double.NaN, 2);
+        f.comma(b);
+        f.putLong(b, -120);
+        assertEquals("0.00,-1.0,13,,-120", format(b));
+
+        f.formatLXWP0(b, 1234.56, -1.5);
+        String s = format(b);
+        assertEquals("$LXWP0,N,,1234.6,-1.50,,,,,,,,*", s.substring(0, s.indexOf('*') + 1));
+        assertTrue(s.endsWith("\r\n"));
+        assertChecksum(s);
+
+        // 1 m/s = 1.944 kt, 1000 m = 3281 ft
+        f.formatPTAS1(b, 1, Double.NaN, 1000);
+        s = format(b);
+        assertEquals("$PTAS1,219,,5281,*", s.substring(0, s.indexOf('*') + 1));
+        assertChecksum(s);
+
+        f.formatPOV(b, 0.25, 1013.25);
+        s = format(b);
+        assertEquals("$POV,E,0.25,P,1013.25*", s.substring(0, s.indexOf('*') + 1));
+        assertChecksum(s);
+    }
+
+    @Test
+    public void LoopbackTest() throws IOException {
+        NmeaOutput output = new NmeaOutput(0);
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), output.getPort());
+        client.setSoTimeout(5000);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+
+        Variometer.StateUpdate u = new Variometer.StateUpdate();
+        u.stateDim = 2;
+        u.x[0] = 500;
+        u.x[1] = 2;
+        u.pressure = 950;
+        output.onStateUpdate(u);
+        assertEquals(1, output.getClientCount());
+
+        String line = reader.readLine();
+        assertTrue(line.startsWith("$LXWP0,N,,500.0,2.00,"));
+        assertChecksum(line);
+        assertTrue(reader.readLine().startsWith("$PTAS1,239,239,"));
+        assertTrue(reader.readLine().startsWith("$POV,E,2.00,P,950.00*"));
+
+        client.close();
+        output.close();
+    }
+
+    @Test
+    public void SlowClientTest() throws IOException {
+        NmeaOutput output = new NmeaOutput(0);
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), output.getPort());
+        Variometer.StateUpdate u = new Variometer.StateUpdate();
+        int i;
+
+        u.stateDim = 2;
+        u.x[0] = 500;
+
+        // The client never reads, sentences are dropped rather than blocking the caller
+        for (i = 0; i < 200000 && output.getDroppedBytes() == 0; i += 1) {
+            u.timestamp = i * 20000000L;
+            output.onStateUpdate(u);
+        }
+        assertTrue(output.getDroppedBytes() > 0);
+        assertEquals(1, output.getClientCount());
+
+        client.close();
+        output.close();
+    }
+}
@@ -0,0 +1,90 @@
+package info.altimeter.variometer.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Synthetic sensor log: the device lies flat and climbs or sinks
+ * with the same acceleration profile as in KalmanFilterTest.
+ */
+public class SimulatedFlight {
+    static final double H = 44330.77;
+    static final double n1 = 5.25593;
+    static final double p0 = 1013.25;
+    static final double g = 9.80665;
+
+    double dt = 0.02;
+    /** Accelerometer samples per pressure sample */
+    int pressureInterval = 2;
+    double sigma_p = 0.02;
+    double sigma_a = 0.05;
+    double h0 = 500;
+    /** Amplitude (m/s²) and frequency (Hz) of a vibration, e.g. from a motor */
+    double vibration = 0;
+    double vibrationFrequency = 50;
+
+    /** Simulated vertical speed at each accelerometer sample */
+    double[] v_sim;
+
+    static double acceleration(double t) {
+        double s = t % 20;
+
+        if (s >= 2 && s < 4) {
+            return +1.5;
+        }
+        if (s >= 6 && s < 8) {
+            return -1.5;
+        }
+        if (s >= 12 && s < 14) {
+            return -1.5;
+        }
+        if (s >= 16 && s < 18) {
+            return +1.5;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Write the log, one pressure sample per pressureInterval accelerometer samples
+     * @return Number of records written
+     */
+    public int write(File file, double duration, long seed) throws IOException {
+        Random random = new Random(seed);
+        int n = (int) Math.round(duration / dt);
+        double a = 0, v = 0, h = h0;
+        int count = 0;
+        int i;
+
+        v_sim = new double[n];
+
+        FileSensorSource.Writer writer = new FileSensorSource.Writer(file, dt * pressureInterval, dt, dt);
+        try {
+            for (i = 0; i < n; i += 1) {
+                long t = Math.round(i * dt * 1e9);
+
+                v += a * dt;
+                h += v * dt + a * dt * dt / 2;
+                v_sim[i] = v;
+
+                writer.onRotation(t, 0, 0, 0, 1);
+                double shake = vibration * Math.cos(2 * Math.PI * vibrationFrequency * i * dt);
+                writer.onAcceleration(t, 0, 0, (float) (g + a + shake + random.nextGaussian() * sigma_a), false);
+                count += 2;
+
+                if (i % pressureInterval == pressureInterval - 1) {
+                    double p = Math.pow(1 - h / H, n1) * p0;
+                    writer.onPressure(t, (float) (p + random.nextGaussian() * sigma_p));
+                    count += 1;
+                }
+
+                a = acceleration(i * dt);
+            }
+        } finally {
+            writer.close();
+        }
+
+        return count;
+    }
+}
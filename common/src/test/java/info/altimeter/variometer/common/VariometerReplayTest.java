@@ -0,0 +1,412 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VariometerReplayTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ReplayTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        SimulatedFlight flight = new SimulatedFlight();
+        int n = flight.write(log, 60, 1);
+
+        Variometer variometer = new Variometer(true, 0);
+        VariometerReplay replay = new VariometerReplay(variometer);
+
+        assertEquals(n, replay.run(new FileSensorSource(log)));
+        assertTrue(replay.getSamplesPerSecond() > 0);
+
+        // The device stops climbing at the end of each 20 s cycle
+        assertEquals(0, variometer.getVerticalSpeed(), 0.2);
+    }
+
+    @Test
+    public void DamagedLogTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        SimulatedFlight flight = new SimulatedFlight();
+        int n = flight.write(log, 10, 1);
+
+        // A record cut short at the end, as when the recorder was killed
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(new byte[] { FileSensorSource.RECORD_PRESSURE, 0, 0 });
+        out.close();
+        assertEquals(n, new VariometerReplay(new Variometer(true, 0)).run(new FileSensorSource(log)));
+
+        // An unknown record is an error, not the end of the flight
+        out = new FileOutputStream(log, true);
+        out.write(new byte[] { 0, 0, 0, 0, 0, 0, 0x44, 0x7d, 0, 0, 9, 0, 0, 0, 0, 0, 0, 0, 0 });
+        out.close();
+        try {
+            new VariometerReplay(new Variometer(true, 0)).run(new FileSensorSource(log));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Unknown record type"));
+        }
+        try {
+            SensorLog.load(log);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Unknown record type"));
+        }
+    }
+
+    @Test
+    public void DeterministicReplayTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        new SimulatedFlight().write(log, 20, 2);
+
+        Variometer v1 = new Variometer(true, 5);
+        Variometer v2 = new Variometer(true, 5);
+        new VariometerReplay(v1).run(new FileSensorSource(log));
+        new VariometerReplay(v2).run(new FileSensorSource(log));
+
+        assertEquals(v1.getAltitude(), v2.getAltitude(), 0);
+        assertEquals(v1.getVerticalSpeed(), v2.getVerticalSpeed(), 0);
+    }
+
+    @Test
+    public void PressureDomainTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        SimulatedFlight flight = new SimulatedFlight();
+        flight.write(log, 120, 8);
+
+        Variometer altitudeInput = new Variometer(true, 0);
+        Variometer pressureInput = new Variometer(true, 0);
+        Variometer relinearized = new Variometer(false, 0);
+        Variometer vsi = new Variometer(false, 0);
+        ErrorListener ea = new ErrorListener(flight);
+        ErrorListener ep = new ErrorListener(flight);
+        ErrorListener er = new ErrorListener(flight);
+        ErrorListener ev = new ErrorListener(flight);
+
+        pressureInput.setPressureDomain(true, 10);
+        relinearized.setPressureDomain(true, 0.5);
+        altitudeInput.subscribe(ea, 0, false);
+        pressureInput.subscribe(ep, 0, false);
+        relinearized.subscribe(er, 0, false);
+        vsi.subscribe(ev, 0, false);
+        new VariometerReplay(altitudeInput).run(new FileSensorSource(log));
+        new VariometerReplay(pressureInput).run(new FileSensorSource(log));
+        new VariometerReplay(relinearized).run(new FileSensorSource(log));
+        new VariometerReplay(vsi).run(new FileSensorSource(log));
+
+        // Same accuracy over the whole flight as with every sample converted to altitude
+        assertEquals(ea.count, ep.count);
+        assertEquals(ea.rms(), ep.rms(), 0.01 * ea.rms());
+        assertEquals(ev.count, er.count);
+        assertEquals(ev.rms(), er.rms(), 0.01 * ev.rms());
+
+        // Same final estimates
+        assertEquals(altitudeInput.getAltitude(), pressureInput.getAltitude(), 0.01);
+        assertEquals(altitudeInput.getVerticalSpeed(), pressureInput.getVerticalSpeed(), 0.005);
+        assertEquals(vsi.getAltitude(), relinearized.getAltitude(), 0.01);
+        assertEquals(vsi.getVerticalSpeed(), relinearized.getVerticalSpeed(), 0.005);
+    }
+
+    /** Vertical speed error of every update against the simulated flight */
+    static class ErrorListener implements Variometer.StateListener {
+        final double[] v_sim;
+        final double dt;
+        /** Expected delay of the estimates, s */
+        double delay = 0;
+        double sumSq = 0;
+        int count = 0;
+
+        ErrorListener(SimulatedFlight flight) {
+            v_sim = flight.v_sim;
+            dt = flight.dt;
+        }
+
+        @Override
+        public void onStateUpdate(Variometer.StateUpdate u) {
+            int i = (int) Math.max(0, Math.round((u.timestamp * 1e-9 - delay) / dt));
+            double e = u.x[1] - v_sim[i];
+
+            sumSq += e * e;
+            count += 1;
+        }
+
+        double rms() {
+            return Math.sqrt(sumSq / count);
+        }
+    }
+
+    @Test
+    public void ControlInputTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        SimulatedFlight flight = new SimulatedFlight();
+        flight.write(log, 300, 9);
+
+        Variometer threeState = new Variometer(true, 0);
+        Variometer controlInput = new Variometer(true, 0);
+        ErrorListener e3 = new ErrorListener(flight);
+        ErrorListener e2 = new ErrorListener(flight);
+
+        controlInput.setControlInput(true);
+        threeState.subscribe(e3, 0, false);
+        controlInput.subscribe(e2, 0, false);
+        new VariometerReplay(threeState).run(new FileSensorSource(log));
+        new VariometerReplay(controlInput).run(new FileSensorSource(log));
+
+        // Same update rate, similar accuracy with two states
+        assertEquals(e3.count, e2.count);
+        assertTrue(e2.rms() < 0.05);
+        assertTrue(e2.rms() < 1.5 * e3.rms());
+        assertTrue(Float.isNaN(controlInput.getVerticalAcceleration()));
+    }
+
+    @Test
+    public void ComplementaryFilterTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        SimulatedFlight flight = new SimulatedFlight();
+        flight.write(log, 300, 10);
+
+        Variometer kalman = new Variometer(true, 0);
+        Variometer complementary = new Variometer(true, 0);
+        ErrorListener ek = new ErrorListener(flight);
+        ErrorListener ec = new ErrorListener(flight);
+
+        complementary.setComplementaryFilter(2);
+        kalman.subscribe(ek, 0, false);
+        complementary.subscribe(ec, 0, false);
+        new VariometerReplay(kalman).run(new FileSensorSource(log));
+        new VariometerReplay(complementary).run(new FileSensorSource(log));
+
+        // Same listeners and update rate, comparable accuracy
+        assertEquals(ek.count, ec.count);
+        assertTrue(ec.rms() < 0.05);
+        assertTrue(ec.rms() < 2 * ek.rms());
+        assertEquals(500, complementary.getAltitude(), 1);
+
+        // Switching back restores the user's own choice of the Kalman filter
+        complementary.setComplementaryFilter(0);
+        assertFalse(complementary.usesControlInput());
+        kalman.setControlInput(true);
+        kalman.setComplementaryFilter(2);
+        kalman.setComplementaryFilter(0);
+        assertTrue(kalman.usesControlInput());
+    }
+
+    @Test
+    public void DecimationTest() throws IOException {
+        File slow = folder.newFile("slow.log");
+        File fast = folder.newFile("fast.log");
+        SimulatedFlight slowFlight = new SimulatedFlight();
+        SimulatedFlight fastFlight = new SimulatedFlight();
+
+        // Motor vibration, sensors sampled at the filter rate or at 200 Hz
+        slowFlight.vibration = 0.2;
+        fastFlight.vibration = 0.2;
+        fastFlight.dt = 0.005;
+        slowFlight.write(slow, 120, 11);
+        fastFlight.write(fast, 120, 11);
+
+        Variometer throttled = new Variometer(true, 0);
+        Variometer decimated = new Variometer(true, 0);
+        ErrorListener et = new ErrorListener(slowFlight);
+        ErrorListener ed = new ErrorListener(fastFlight);
+
+        decimated.setDecimation(true);
+        // Group delay of both decimators, three pressure periods at the filter rate
+        ed.delay = 3 * Math.max(fastFlight.dt * fastFlight.pressureInterval, decimated.minPressureSamplingPeriod);
+        throttled.subscribe(et, 0, false);
+        decimated.subscribe(ed, 0, false);
+        new VariometerReplay(throttled).run(new FileSensorSource(slow));
+        new VariometerReplay(decimated).run(new FileSensorSource(fast));
+
+        // The filter runs at the same rate; sampled at 50 Hz, the vibration aliases to a bias
+        assertEquals(et.count, ed.count);
+        assertTrue(et.rms() > 0.5);
+        assertTrue(ed.rms() < 0.03);
+
+        // Pressure and acceleration are delayed by the same time
+        assertEquals(ed.delay, decimated.pressureDecimator.getDelay() * decimated.pressureSamplePeriod_us * 1e-6, 1e-6);
+        assertEquals(ed.delay, decimated.accelerationDecimator.getDelay() * decimated.accelerationSamplePeriod_us * 1e-6, 1e-6);
+    }
+
+    @Test
+    public void SlowBarometerDecimationTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        SimulatedFlight flight = new SimulatedFlight();
+
+        // Accelerometer at 200 Hz, barometer at 10 Hz, slower than the filter rate
+        flight.vibration = 0.2;
+        flight.dt = 0.005;
+        flight.pressureInterval = 20;
+        flight.write(log, 120, 14);
+
+        Variometer ivsi = new Variometer(true, 0);
+        Variometer vsi = new Variometer(false, 0);
+        ErrorListener e = new ErrorListener(flight);
+
+        ivsi.setDecimation(true);
+        vsi.setDecimation(true);
+        // Three periods of the barometer, not of the filter rate
+        e.delay = 3 * flight.dt * flight.pressureInterval;
+        ivsi.subscribe(e, 0, false);
+        new VariometerReplay(ivsi).run(new FileSensorSource(log));
+        new VariometerReplay(vsi).run(new FileSensorSource(log));
+
+        // Pressure is not decimated, but delayed to match the acceleration
+        assertEquals(e.delay, ivsi.pressureDecimator.getDelay() * ivsi.pressureSamplePeriod_us * 1e-6, 1e-6);
+        assertEquals(e.delay, ivsi.accelerationDecimator.getDelay() * ivsi.accelerationSamplePeriod_us * 1e-6, 1e-6);
+        assertTrue(e.rms() < 0.05);
+
+        // Without acceleration input, the barometer is used as it is
+        assertNull(vsi.pressureDecimator);
+    }
+
+    @Test
+    public void CovarianceIntervalTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        SimulatedFlight flight = new SimulatedFlight();
+        flight.write(log, 300, 12);
+
+        Variometer full = new Variometer(true, 0);
+        Variometer split = new Variometer(true, 0);
+        ErrorListener ef = new ErrorListener(flight);
+        ErrorListener es = new ErrorListener(flight);
+
+        split.setCovarianceInterval(50);
+        full.subscribe(ef, 0, false);
+        split.subscribe(es, 0, false);
+        new VariometerReplay(full).run(new FileSensorSource(log));
+        new VariometerReplay(split).run(new FileSensorSource(log));
+
+        // Once the gains converge, the covariance is updated once a second, with little loss of accuracy
+        assertEquals(ef.count, es.count);
+        assertTrue(es.rms() < 1.05 * ef.rms());
+        assertFalse(((KalmanFilter) split.filter).refreshing);
+    }
+
+    @Test
+    public void SmoothedStateSinkTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        final SimulatedFlight flight = new SimulatedFlight();
+        flight.write(log, 120, 13);
+
+        Variometer smoothed = new Variometer(true, 50);
+        final long[] updateTimes = new long[10000];
+        final int[] updates = { 0 };
+        final int[] count = { 0 };
+        final double[] sumSq = { 0 };
+
+        smoothed.subscribe(new Variometer.StateListener() {
+            @Override
+            public void onStateUpdate(Variometer.StateUpdate u) {
+                if (u.sensor == SensorSource.ACCELERATION) {
+                    updateTimes[updates[0]] = u.timestamp;
+                    updates[0] += 1;
+                }
+            }
+        }, 0, false);
+
+        smoothed.setSmoothedStateSink(new StateSmoother.Sink() {
+            @Override
+            public void onSmoothedState(long timestamp, double[] x) {
+                // Every step once, in order, after it has been filtered
+                assertTrue(count[0] < updates[0]);
+                assertEquals(updateTimes[count[0]], timestamp);
+                count[0] += 1;
+
+                double e = x[1] - flight.v_sim[(int) Math.round(timestamp * 1e-9 / flight.dt)];
+                sumSq[0] += e * e;
+            }
+        });
+
+        new VariometerReplay(smoothed).run(new FileSensorSource(log));
+
+        // One state per acceleration update, including the window flushed on stop
+        assertEquals(updates[0], count[0]);
+        assertTrue(Math.sqrt(sumSq[0] / count[0]) < 0.05);
+    }
+
+    static class CountingListener implements Variometer.VariometerListener {
+        int count = 0;
+        float sumV = 0;
+
+        @Override
+        public void onStateUpdate(float h, float v) {
+            count += 1;
+            sumV += v;
+        }
+    }
+
+    @Test
+    public void SubscriptionTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        new SimulatedFlight().write(log, 20, 4);
+
+        Variometer variometer = new Variometer(true, 0);
+        CountingListener all = new CountingListener();
+        CountingListener decimated = new CountingListener();
+        CountingListener averaged = new CountingListener();
+        CountingListener removed = new CountingListener();
+
+        variometer.subscribe(all, 0, false);
+        variometer.subscribe(decimated, 5, false);
+        variometer.subscribe(averaged, 5, true);
+        variometer.unsubscribe(variometer.subscribe(removed, 0, false));
+        new VariometerReplay(variometer).run(new FileSensorSource(log));
+
+        // Pressure and acceleration updates at 50 Hz, 5 Hz after decimation
+        assertTrue(all.count > 900);
+        assertEquals(100, decimated.count, 2);
+        assertEquals(decimated.count, averaged.count);
+        assertEquals(0, removed.count);
+
+        // Averages follow the same flight
+        assertEquals(decimated.sumV / decimated.count, averaged.sumV / averaged.count, 0.2);
+    }
+
+    @Test
+    public void StateListenerTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        new SimulatedFlight().write(log, 10, 5);
+
+        final Variometer variometer = new Variometer(true, 0);
+        final int[] counts = new int[3];
+        final Variometer.StateUpdate[] seen = new Variometer.StateUpdate[1];
+
+        variometer.subscribe(new Variometer.StateListener() {
+            @Override
+            public void onStateUpdate(Variometer.StateUpdate u) {
+                // The same object every time, with the current filter state
+                if (seen[0] == null) {
+                    seen[0] = u;
+                }
+                assertTrue(seen[0] == u);
+                assertEquals(Variometer.StateUpdate.VERSION, u.version);
+                assertEquals(3, u.stateDim);
+                assertEquals(variometer.getAltitude(), u.x[0], 1e-3);
+                assertEquals(variometer.getVerticalSpeed(), u.x[1], 1e-3);
+                assertEquals(variometer.getVerticalAcceleration(), u.x[2], 1e-3);
+                assertTrue(u.variance[0] > 0 && u.variance[1] > 0 && u.variance[2] > 0);
+                counts[u.sensor] += 1;
+            }
+        }, 0, false);
+
+        CountingListener old = new CountingListener();
+        variometer.setListener(old);
+        new VariometerReplay(variometer).run(new FileSensorSource(log));
+
+        assertTrue(counts[SensorSource.ACCELERATION] > 0);
+        assertEquals(old.count, counts[SensorSource.PRESSURE]);
+        assertEquals(0, counts[SensorSource.ROTATION]);
+    }
+}
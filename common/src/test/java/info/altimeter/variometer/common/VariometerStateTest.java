@@ -0,0 +1,84 @@
+package info.altimeter.variometer.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VariometerStateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void ConsistencyTest() throws InterruptedException {
+        final VariometerState state = new VariometerState();
+        final int n = 200000;
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                int i;
+
+                for (i = 1; i <= n; i += 1) {
+                    state.publish(i, i, i, i, i, i, i);
+                }
+            }
+        };
+
+        VariometerState.Snapshot s = state.newSnapshot();
+        writer.start();
+
+        // Every value of a snapshot comes from the same publication
+        do {
+            state.read(s);
+            if (s.sequence == 0) {
+                // Not published yet
+                continue;
+            }
+            assertEquals(s.timestamp, s.altitude, 0);
+            assertEquals(s.altitude, s.verticalSpeed, 0);
+            assertEquals(s.altitude, s.acceleration, 0);
+            assertEquals(s.altitude, s.altitudeVariance, 0);
+            assertEquals(s.altitude, s.verticalSpeedVariance, 0);
+            assertEquals(s.altitude, s.accelerationVariance, 0);
+        } while (writer.isAlive());
+
+        writer.join();
+        state.read(s);
+        assertEquals(n, s.timestamp);
+        assertEquals(2 * n, s.sequence);
+    }
+
+    @Test
+    public void ReplayTest() throws IOException {
+        File log = folder.newFile("flight.log");
+        new SimulatedFlight().write(log, 20, 3);
+
+        Variometer variometer = new Variometer(true, 0);
+        VariometerState state = variometer.getPublishedState();
+        int seq = state.getSequence();
+
+        new VariometerReplay(variometer).run(new FileSensorSource(log));
+        assertNotEquals(seq, state.getSequence());
+
+        VariometerState.Snapshot s = state.newSnapshot();
+        state.read(s);
+        assertEquals(variometer.getAltitude(), s.altitude, 1e-3);
+        assertEquals(variometer.getVerticalSpeed(), s.verticalSpeed, 1e-3);
+        assertEquals(variometer.getVerticalAcceleration(), s.acceleration, 1e-3);
+        assertTrue(s.altitudeVariance > 0);
+        assertTrue(s.verticalSpeedVariance > 0);
+        assertTrue(s.timestamp > 0);
+
+        state.clear(s.timestamp + 1);
+        state.read(s);
+        assertTrue(Double.isNaN(s.verticalSpeed));
+    }
+}